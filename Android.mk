@@ -25,7 +25,9 @@ include $(CLEAR_VARS)
 LOCAL_SRC_FILES := \
     $(call all-java-files-under, src) \
     src/com/dsi/ant/server/IAntHal.aidl \
-    src/com/dsi/ant/server/IAntHalCallback.aidl
+    src/com/dsi/ant/server/IAntHalCallback.aidl \
+    src/com/dsi/ant/server/IAntHal2.aidl \
+    src/com/dsi/ant/server/IAntHal2Callback.aidl
 
 LOCAL_REQUIRED_MODULES := ant-wireless.conf
 LOCAL_PROGUARD_FLAG_FILES := proguard.flags
@@ -58,4 +60,6 @@ LOCAL_SRC_FILES = conf/default/ant-wireless.conf
 endif
 
 include $(BUILD_PREBUILT)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
 endif # BOARD_ANT_WIRELESS_DEVICE defined
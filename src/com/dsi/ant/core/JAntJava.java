@@ -17,10 +17,11 @@
  */
 package com.dsi.ant.core;
 
-import android.util.Log;
-
 import com.dsi.ant.server.AntHalDefine;
 
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
 
 /** Class for providing connection with JANTNative.cpp module */
 
@@ -30,24 +31,87 @@ public class JAntJava
     private static final String TAG = "JAntJava";
     private static ICallback mCallback = null;
 
+    /** Passes calls to the native part of this class in libantradio.so. */
+    private static final JAntNative LIBRARY = new JAntNative()
+    {
+        public int create() { return nativeJAnt_Create(); }
+        public int destroy() { return nativeJAnt_Destroy(); }
+        public int enable() { return nativeJAnt_Enable(); }
+        public int disable() { return nativeJAnt_Disable(); }
+        public int getRadioEnabledStatus() { return nativeJAnt_GetRadioEnabledStatus(); }
+        public int txMessage(byte[] message) { return nativeJAnt_TxMessage(message); }
+        public int hardReset() { return nativeJAnt_HardReset(); }
+        public int setRxBuffer(ByteBuffer buffer, int slotSize)
+        {
+            try
+            {
+                return nativeJAnt_SetRxBuffer(buffer, slotSize);
+            }
+            catch (UnsatisfiedLinkError e)
+            {
+                // Older library, received messages only come as arrays.
+                return JAntStatus.NOT_SUPPORTED.getValue();
+            }
+        }
+    };
+
+    private static JAntNative sNative = LIBRARY;
+    private static boolean sLibraryLoaded = false;
+    private static volatile JAntRxRing sRxRing = null;
 
-    /** Static constructor */
-    static
+    /**
+     * Loads libantradio.so the first time the library is about to be used, so a stand-in can be
+     * chosen with {@link #setNative(JAntNative)} where it does not exist.
+     *
+     * @throws UnsatisfiedLinkError If the library could not be loaded.
+     */
+    private static synchronized void loadLibrary()
     {
+        if (sLibraryLoaded) return;
+
         try
         {
             System.load("libantradio.so");
         }
-        catch (Exception e)
+        catch (UnsatisfiedLinkError e)
         {
-            Log.e("JANT", "Exception during nativeJANT_ClassInitNative (" + e.toString() + ")");
+            JAntLog.e("JANT", "Could not load libantradio.so (" + e.toString() + ")");
+            throw e;
         }
+        sLibraryLoaded = true;
     }
 
     public interface ICallback
     {
-        void ANTRxMessage(byte[] RxMessage);
+        /**
+         * @param receivedNanos When the library reported the message, from
+         * {@link JAntUtils#elapsedRealtimeNanos()}.
+         */
+        void ANTRxMessage(byte[] RxMessage, long receivedNanos);
         void ANTStateChange(int NewState);
+
+        /**
+         * A received message from the RX ring. Called on the ring's dispatch thread, so it is
+         * not serialized with the other callbacks.
+         *
+         * @param RxMessage The message from its position to its limit, only valid during the
+         * call.
+         * @param receivedNanos When the library reported the message, from
+         * {@link JAntUtils#elapsedRealtimeNanos()}.
+         */
+        void ANTRxMessage(ByteBuffer RxMessage, long receivedNanos);
+    }
+
+    /**
+     * Uses a stand-in for libantradio.so, for example to run on a build host. Must be called
+     * before {@link #create(ICallback)}. Without one, create fails with an UnsatisfiedLinkError
+     * if the library cannot be loaded.
+     *
+     * @param standIn The stand-in, or null to go back to the library.
+     */
+    public static void setNative(JAntNative standIn)
+    {
+        sNative = (standIn != null) ? standIn : LIBRARY;
     }
     /*******************************************************************************
      *
@@ -56,31 +120,48 @@ public class JAntJava
      *******************************************************************************/
 
     public JAntStatus create(ICallback callback)
+    {
+        return create(callback, 0);
+    }
+
+    /**
+     * @param rxRingSize The number of slots in the direct buffer ring received messages are
+     * written into, or 0 to have every message passed up as a new array. Also falls back to
+     * arrays if the library does not support the ring.
+     * @throws UnsatisfiedLinkError If no stand-in is set and libantradio.so cannot be loaded.
+     */
+    public JAntStatus create(final ICallback callback, int rxRingSize)
     {
         JAntStatus jAntStatus;
 
+        if (sNative == LIBRARY) loadLibrary();
+
         try
         {
             if (debug)
-                Log.d(TAG, "Calling nativeJAnt_Create");
-            int AntStatus = nativeJAnt_Create();
+                JAntLog.d(TAG, "Calling nativeJAnt_Create");
+            int AntStatus = sNative.create();
             jAntStatus = JAntUtils.getEnumConst(JAntStatus.class, AntStatus);
 
             // Record the caller's callback if create was successful
             if (JAntStatus.SUCCESS == jAntStatus)
             {
                 if (debug)
-                    Log.d(TAG, "create: nativeJAnt_Create returned success");
+                    JAntLog.d(TAG, "create: nativeJAnt_Create returned success");
                 mCallback = callback;
+                if (rxRingSize > 0)
+                {
+                    startRxRing(callback, rxRingSize);
+                }
             }
             else
             {
-                Log.e(TAG, "create: nativeJAnt_Create failed " + jAntStatus);
+                JAntLog.e(TAG, "create: nativeJAnt_Create failed " + jAntStatus);
             }
         }
         catch(Exception e)
         {
-            Log.e(TAG, "create: exception during nativeJAnt_Create (" + e.toString() + ")");
+            JAntLog.e(TAG, "create: exception during nativeJAnt_Create (" + e.toString() + ")");
             jAntStatus = JAntStatus.FAILED;
         }
 
@@ -90,32 +171,33 @@ public class JAntJava
     public JAntStatus destroy()
     {
         if (debug)
-            Log.d(TAG, "destroy: entered");
+            JAntLog.d(TAG, "destroy: entered");
         JAntStatus jAntStatus;
 
         try
         {
-            int AntStatus = nativeJAnt_Destroy();
+            stopRxRing();
+            int AntStatus = sNative.destroy();
             jAntStatus = JAntUtils.getEnumConst(JAntStatus.class, AntStatus);
             if (JAntStatus.SUCCESS == jAntStatus)
             {
                 if (debug)
-                    Log.d(TAG, "destroy: nativeJAnt_Destroy returned success");
+                    JAntLog.d(TAG, "destroy: nativeJAnt_Destroy returned success");
                 mCallback = null;
             }
             else
             {
-                Log.e(TAG, "destroy: nativeJAnt_Destroy failed " + jAntStatus);
+                JAntLog.e(TAG, "destroy: nativeJAnt_Destroy failed " + jAntStatus);
             }
         }
         catch (Exception e)
         {
-            Log.e(TAG, "destroy: exception during nativeJAnt_Destroy (" + e.toString() + ")");
+            JAntLog.e(TAG, "destroy: exception during nativeJAnt_Destroy (" + e.toString() + ")");
             jAntStatus = JAntStatus.FAILED;
         }
 
         if (debug)
-            Log.d(TAG, "destroy: exiting");
+            JAntLog.d(TAG, "destroy: exiting");
 
         return jAntStatus;
     }
@@ -123,25 +205,25 @@ public class JAntJava
     public JAntStatus enable()
     {
         if (debug)
-            Log.d(TAG, "enable: entered");
+            JAntLog.d(TAG, "enable: entered");
 
         JAntStatus jAntStatus;
 
         try
         {
-            int AntStatus = nativeJAnt_Enable();
+            int AntStatus = sNative.enable();
             jAntStatus = JAntUtils.getEnumConst(JAntStatus.class, AntStatus);
             if (debug)
-                Log.d(TAG, "After nativeJAnt_Enable, status = " + jAntStatus.toString());
+                JAntLog.d(TAG, "After nativeJAnt_Enable, status = " + jAntStatus.toString());
         }
         catch (Exception e)
         {
-            Log.e(TAG, "enable: exception during nativeJAnt_enable (" + e.toString() + ")");
+            JAntLog.e(TAG, "enable: exception during nativeJAnt_enable (" + e.toString() + ")");
             jAntStatus = JAntStatus.FAILED;
         }
 
         if (debug)
-            Log.d(TAG, "enable: exiting");
+            JAntLog.d(TAG, "enable: exiting");
 
         return jAntStatus;
     }
@@ -150,97 +232,143 @@ public class JAntJava
     public JAntStatus disable()
     {
         if (debug)
-            Log.d(TAG, "disable: entered");
+            JAntLog.d(TAG, "disable: entered");
 
         JAntStatus jAntStatus;
 
         try
         {
-            int status = nativeJAnt_Disable();
+            int status = sNative.disable();
             jAntStatus = JAntUtils.getEnumConst(JAntStatus.class, status);
             if (debug)
-                Log.d(TAG, "After nativeJAnt_Disable, status = " + jAntStatus.toString());
+                JAntLog.d(TAG, "After nativeJAnt_Disable, status = " + jAntStatus.toString());
         }
         catch (Exception e)
         {
-            Log.e(TAG, "disable: exception during nativeJAnt_Disable (" + e.toString() + ")");
+            JAntLog.e(TAG, "disable: exception during nativeJAnt_Disable (" + e.toString() + ")");
             jAntStatus = JAntStatus.FAILED;
         }
 
         if (debug)
-            Log.d(TAG, "disable: exiting");
+            JAntLog.d(TAG, "disable: exiting");
 
         return jAntStatus;
     }
 
     public int getRadioEnabledStatus()
     {
-        if (debug) Log.d(TAG, "getRadioEnabledStatus: entered");
+        if (debug) JAntLog.d(TAG, "getRadioEnabledStatus: entered");
         int retStatus;
         try
         {
-            retStatus = nativeJAnt_GetRadioEnabledStatus();
-            if (debug) Log.i(TAG, "Got ANT status as " + retStatus);
+            retStatus = sNative.getRadioEnabledStatus();
+            if (debug) JAntLog.i(TAG, "Got ANT status as " + retStatus);
         }
         catch (Exception e)
         {
-            Log.e(TAG, "getRadioEnabledStatus: exception during call (" + e.toString() + ")");
+            JAntLog.e(TAG, "getRadioEnabledStatus: exception during call (" + e.toString() + ")");
             retStatus = AntHalDefine.ANT_HAL_STATE_UNKNOWN;
         }
-        if (debug) Log.d(TAG, "getRadioEnabledStatus: exiting");
+        if (debug) JAntLog.d(TAG, "getRadioEnabledStatus: exiting");
         return retStatus;
     }
 
     public JAntStatus ANTTxMessage(byte[] message)
     {
         if (debug)
-            Log.d(TAG, "ANTTxMessage: entered");
+            JAntLog.d(TAG, "ANTTxMessage: entered");
         JAntStatus jAntStatus;
 
         try
         {
-            int AntStatus = nativeJAnt_TxMessage(message);
+            int AntStatus = sNative.txMessage(message);
             jAntStatus = JAntUtils.getEnumConst(JAntStatus.class, AntStatus);
             if (debug)
-                Log.d(TAG, "After nativeJAnt_ANTTxMessage, status = " + jAntStatus.toString());
+                JAntLog.d(TAG, "After nativeJAnt_ANTTxMessage, status = " + jAntStatus.toString());
         }
         catch (Exception e)
         {
-            Log.e(TAG, "ANTTxMessage: exception during nativeJAnt_ANTTxMessage (" + e.toString() + ")");
+            JAntLog.e(TAG, "ANTTxMessage: exception during nativeJAnt_ANTTxMessage (" + e.toString() + ")");
             jAntStatus = JAntStatus.FAILED;
         }
 
         if (debug)
-            Log.d(TAG, "ANTTxMessage: exiting");
+            JAntLog.d(TAG, "ANTTxMessage: exiting");
         return jAntStatus;
     }
 
     public JAntStatus hardReset()
     {
         if (debug)
-            Log.d(TAG, "hardReset: entered");
+            JAntLog.d(TAG, "hardReset: entered");
 
         JAntStatus jAntStatus;
 
         try
         {
-            int status = nativeJAnt_HardReset();
+            int status = sNative.hardReset();
             jAntStatus = JAntUtils.getEnumConst(JAntStatus.class, status);
             if (debug)
-                Log.d(TAG, "After nativeJAnt_HardReset, status = " + jAntStatus.toString());
+                JAntLog.d(TAG, "After nativeJAnt_HardReset, status = " + jAntStatus.toString());
         }
         catch (Exception e)
         {
-            Log.e(TAG, "hardReset: exception during nativeJAnt_HardReset, (" + e.toString() + ")");
+            JAntLog.e(TAG, "hardReset: exception during nativeJAnt_HardReset, (" + e.toString() + ")");
             jAntStatus = JAntStatus.FAILED;
         }
 
         if (debug)
-            Log.d(TAG, "hardReset:: exiting");
+            JAntLog.d(TAG, "hardReset:: exiting");
 
         return jAntStatus;
     }
 
+    private static void startRxRing(final ICallback callback, int rxRingSize)
+    {
+        JAntRxRing ring = new JAntRxRing(rxRingSize, new JAntRxRing.Receiver()
+        {
+            public void onRxMessage(ByteBuffer message, long receivedNanos)
+            {
+                callback.ANTRxMessage(message, receivedNanos);
+            }
+        });
+
+        int status = sNative.setRxBuffer(ring.getBuffer(), JAntRxRing.SLOT_SIZE);
+        if (status == JAntStatus.SUCCESS.getValue())
+        {
+            sRxRing = ring;
+        }
+        else
+        {
+            if (debug) JAntLog.d(TAG, "RX ring not used, setRxBuffer returned " + status);
+            ring.stop();
+        }
+    }
+
+    private static void stopRxRing()
+    {
+        JAntRxRing ring = sRxRing;
+        if (ring == null) return;
+
+        // Stopped first, the library's receive thread may be waiting in it for a free slot.
+        ring.stop();
+        sNative.setRxBuffer(null, 0);
+        sRxRing = null;
+    }
+
+    public void dump(PrintWriter pw)
+    {
+        JAntRxRing ring = sRxRing;
+        if (ring != null)
+        {
+            ring.dump(pw);
+        }
+        else
+        {
+            pw.println("  VFS RX ring: not in use");
+        }
+    }
+
     /* --------------------------------
      *            NATIVE PART
      * --------------------------------
@@ -253,6 +381,7 @@ public class JAntJava
     private static native int    nativeJAnt_GetRadioEnabledStatus();
     private static native int    nativeJAnt_TxMessage(byte[] message);
     private static native int    nativeJAnt_HardReset();
+    private static native int    nativeJAnt_SetRxBuffer(ByteBuffer buffer, int slotSize);
 
 
     /*    ----------------------------------------------
@@ -261,23 +390,42 @@ public class JAntJava
      */
     public static void nativeCb_AntRxMessage(byte[] RxMessage)
     {
+        // Taken first, before anything else adds to the message's latency.
+        long receivedNanos = JAntUtils.elapsedRealtimeNanos();
+
         if (debug)
-            Log.d(TAG, "nativeCb_AntRxMessage: calling callback");
+            JAntLog.d(TAG, "nativeCb_AntRxMessage: calling callback");
 
         if (mCallback != null)
         {
-            mCallback.ANTRxMessage(RxMessage);
+            mCallback.ANTRxMessage(RxMessage, receivedNanos);
         }
         else
         {
-            Log.e(TAG, "nativeCb_AntRxMessage: callback is null");
+            JAntLog.e(TAG, "nativeCb_AntRxMessage: callback is null");
+        }
+    }
+
+    /**
+     * A received message has been written to the current slot of the RX ring.
+     *
+     * @return The slot to write the next message into.
+     */
+    public static int nativeCb_AntRxSlotWritten(int length)
+    {
+        JAntRxRing ring = sRxRing;
+        if (ring == null)
+        {
+            JAntLog.e(TAG, "nativeCb_AntRxSlotWritten: no RX ring");
+            return 0;
         }
+        return ring.onSlotWritten(length);
     }
 
     public static void nativeCb_AntStateChange(int NewState)
     {
         if (debug)
-            Log.d(TAG, "nativeCb_AntStateChange: calling callback");
+            JAntLog.d(TAG, "nativeCb_AntStateChange: calling callback");
 
         if (mCallback != null)
         {
@@ -285,7 +433,7 @@ public class JAntJava
         }
         else
         {
-            Log.e(TAG, "nativeCb_AntStateChange: callback is null");
+            JAntLog.e(TAG, "nativeCb_AntStateChange: callback is null");
         }
     }
 
@@ -0,0 +1,59 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.core;
+
+import android.util.Log;
+
+/**
+ * Logging for the transport classes, which goes to android.util.Log on a device and to
+ * System.err elsewhere, so the transport can run on a build host with {@link JAntStandIn}.
+ */
+final class JAntLog
+{
+    private JAntLog() {}
+
+    static void d(String tag, String message)
+    {
+        if (JAntUtils.ON_ANDROID) Log.d(tag, message);
+        else print("D", tag, message);
+    }
+
+    static void i(String tag, String message)
+    {
+        if (JAntUtils.ON_ANDROID) Log.i(tag, message);
+        else print("I", tag, message);
+    }
+
+    static void w(String tag, String message)
+    {
+        if (JAntUtils.ON_ANDROID) Log.w(tag, message);
+        else print("W", tag, message);
+    }
+
+    static void e(String tag, String message)
+    {
+        if (JAntUtils.ON_ANDROID) Log.e(tag, message);
+        else print("E", tag, message);
+    }
+
+    private static void print(String level, String tag, String message)
+    {
+        System.err.println(level + "/" + tag + ": " + message);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The calls {@link JAntJava} makes into the ANT radio library. Normally these go to
+ * libantradio.so, but a stand-in such as {@link JAntStandIn} can be used instead where the
+ * library is not available.
+ *
+ * Every call returns a {@link JAntStatus} value, except {@link #getRadioEnabledStatus()}.
+ */
+public interface JAntNative
+{
+    int create();
+    int destroy();
+    int enable();
+    int disable();
+
+    /**
+     * @return An AntHalDefine.ANT_HAL_STATE_X value.
+     */
+    int getRadioEnabledStatus();
+
+    int txMessage(byte[] message);
+    int hardReset();
+
+    /**
+     * Has received messages written into a ring of slots in a direct buffer, instead of each
+     * being passed up as a new array through {@link JAntJava#nativeCb_AntRxMessage(byte[])}.
+     *
+     * Each message is written to the start of the current slot, beginning with slot 0, and then
+     * {@link JAntJava#nativeCb_AntRxSlotWritten(int)} is called with its length. That call
+     * returns the slot to write the next message into, and blocks while every slot is waiting to
+     * be passed on. Messages longer than a slot are still passed up as arrays.
+     *
+     * @param buffer The direct buffer holding the slots, or null to stop using it.
+     * @param slotSize The size of each slot in bytes.
+     * @return SUCCESS if the buffer will be used, NOT_SUPPORTED if it cannot be.
+     */
+    int setRxBuffer(ByteBuffer buffer, int slotSize);
+}
@@ -0,0 +1,251 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.core;
+
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ring of fixed size slots in a direct buffer, which the radio library writes received
+ * messages into without allocating an array for each, and a thread that passes them on.
+ *
+ * The library thread is the only producer. It writes a message into the slot it was last given
+ * and reports its length through {@link #onSlotWritten(int)}, which publishes the slot and hands
+ * back the next free one. When the ring is full the library thread waits there until the
+ * dispatch thread has passed a message on, so a slow consumer holds the library back as it did
+ * without the ring, and no message is lost. The dispatch thread is the only consumer, and each
+ * slot is only reused once the message in it has been passed on.
+ *
+ * Only a message of a bad length, or one written once the ring is stopped, goes to a spare slot
+ * and is dropped.
+ */
+final class JAntRxRing
+{
+    private static final String TAG = "JAntRxRing";
+    private static final boolean DEBUG = false;
+
+    /** Comfortably larger than any ANT message, including extended data. */
+    static final int SLOT_SIZE = 64;
+
+    interface Receiver
+    {
+        /**
+         * @param message The message from its position to its limit, only valid during the call.
+         * @param receivedNanos When the library reported the message, from
+         * {@link JAntUtils#elapsedRealtimeNanos()}.
+         */
+        void onRxMessage(ByteBuffer message, long receivedNanos);
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    /** The slot past the end of the ring, for messages that are dropped. */
+    private final int mSpareSlot;
+    private final ByteBuffer mBuffer;
+    private final int[] mLengths;
+    private final long[] mReceivedNanos;
+    private final Receiver mReceiver;
+
+    /** Next slot to read. Only written by the consumer. */
+    private final AtomicLong mHead = new AtomicLong();
+    /** Next slot to write. Only written by the producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** The slot the producer is writing into. Only used by the producer. */
+    private int mWriteSlot = 0;
+    private long mHeadCache = 0;
+
+    private final Thread mThread;
+    private final AtomicBoolean mParked = new AtomicBoolean();
+    private volatile boolean mStopped = false;
+
+    /** The library thread, while it waits for a free slot. */
+    private volatile Thread mProducer;
+    private final AtomicBoolean mProducerParked = new AtomicBoolean();
+
+    private volatile long mDispatched = 0;
+    private volatile long mDropped = 0;
+    private volatile long mFullWaits = 0;
+    private volatile int mMaxDepth = 0;
+
+    /**
+     * @param capacity The number of slots, rounded up to a power of 2.
+     */
+    JAntRxRing(int capacity, Receiver receiver)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        mCapacity = size;
+        mMask = size - 1;
+        mSpareSlot = size;
+        mBuffer = ByteBuffer.allocateDirect((size + 1) * SLOT_SIZE);
+        mLengths = new int[size];
+        mReceivedNanos = new long[size];
+        mReceiver = receiver;
+
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                dispatchLoop();
+            }
+        }, "AntHalVfsRxDispatcher");
+        mThread.start();
+    }
+
+    /**
+     * @return The buffer to give to {@link JAntNative#setRxBuffer(ByteBuffer, int)}.
+     */
+    ByteBuffer getBuffer()
+    {
+        return mBuffer;
+    }
+
+    /**
+     * Called on the library's receive thread once a message has been written to the current
+     * slot.
+     *
+     * @return The slot to write the next message into.
+     */
+    int onSlotWritten(int length)
+    {
+        long receivedNanos = JAntUtils.elapsedRealtimeNanos();
+
+        if (mWriteSlot == mSpareSlot || mStopped || length <= 0 || length > SLOT_SIZE)
+        {
+            mDropped++;
+            if (DEBUG) JAntLog.w(TAG, "RX message of length " + length + " dropped");
+        }
+        else
+        {
+            mLengths[mWriteSlot] = length;
+            mReceivedNanos[mWriteSlot] = receivedNanos;
+            long tail = mTail.get() + 1;
+            mTail.lazySet(tail);
+
+            int depth = (int) (tail - mHead.get());
+            if (depth > mMaxDepth) mMaxDepth = depth;
+
+            if (mParked.compareAndSet(true, false))
+            {
+                LockSupport.unpark(mThread);
+            }
+        }
+
+        mWriteSlot = nextFreeSlot();
+        return mWriteSlot;
+    }
+
+    /**
+     * Waits for the dispatch thread to free a slot if the ring is full.
+     *
+     * @return The spare slot only once the ring is stopped.
+     */
+    private int nextFreeSlot()
+    {
+        long tail = mTail.get();
+        if (tail - mHeadCache >= mCapacity)
+        {
+            mHeadCache = mHead.get();
+            if (tail - mHeadCache >= mCapacity)
+            {
+                mFullWaits++;
+                mProducer = Thread.currentThread();
+                while (true)
+                {
+                    // Set before looking again, so the dispatch thread either sees it or has
+                    // moved the head on already.
+                    mProducerParked.set(true);
+                    mHeadCache = mHead.get();
+                    if (tail - mHeadCache < mCapacity || mStopped) break;
+                    LockSupport.park(this);
+                }
+                mProducerParked.set(false);
+
+                if (tail - mHeadCache >= mCapacity) return mSpareSlot;
+            }
+        }
+        return (int) (tail & mMask);
+    }
+
+    /**
+     * Stops the dispatch thread, and lets the library thread go if it is waiting for a slot.
+     * Whatever the library writes from then on is dropped, until it is given another buffer.
+     */
+    void stop()
+    {
+        mStopped = true;
+        LockSupport.unpark(mThread);
+        wakeProducer();
+    }
+
+    private void wakeProducer()
+    {
+        if (mProducerParked.compareAndSet(true, false))
+        {
+            LockSupport.unpark(mProducer);
+        }
+    }
+
+    private void dispatchLoop()
+    {
+        // A view of the buffer for the consumer alone, so the receiver may read it freely.
+        ByteBuffer view = mBuffer.duplicate();
+
+        while (!mStopped)
+        {
+            long head = mHead.get();
+            if (head < mTail.get())
+            {
+                int slot = (int) (head & mMask);
+                int offset = slot * SLOT_SIZE;
+                view.clear();
+                view.position(offset);
+                view.limit(offset + mLengths[slot]);
+
+                mReceiver.onRxMessage(view, mReceivedNanos[slot]);
+                mDispatched++;
+                // Not lazy, the library thread may be waiting for this slot.
+                mHead.set(head + 1);
+                wakeProducer();
+                continue;
+            }
+
+            mParked.set(true);
+            if (mHead.get() >= mTail.get() && !mStopped)
+            {
+                LockSupport.park(this);
+            }
+            mParked.set(false);
+        }
+    }
+
+    void dump(PrintWriter pw)
+    {
+        pw.println("  VFS RX ring: depth=" + Math.max(0, mTail.get() - mHead.get()) + "/"
+                + mCapacity + " maxDepth=" + mMaxDepth + " dispatched=" + mDispatched
+                + " fullWaits=" + mFullWaits + " dropped=" + mDropped);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.core;
+
+import com.dsi.ant.server.AntHalDefine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pure Java stand-in for libantradio.so, so the VFS transport can be exercised where the
+ * library is not available, such as on a build host. Installed with
+ * {@link JAntJava#setNative(JAntNative)}.
+ *
+ * There is no radio behind it. Enabling, disabling and resetting report the same state changes
+ * the library does, sent messages are kept to be looked at, and {@link #receive(byte[])} passes
+ * a message up the way the library does, through the RX ring once one is set.
+ */
+public class JAntStandIn implements JAntNative
+{
+    private static final int SUCCESS = JAntStatus.SUCCESS.getValue();
+
+    private volatile int mState = AntHalDefine.ANT_HAL_STATE_DISABLED;
+    private final List<byte[]> mSent = new ArrayList<byte[]>();
+
+    private final Object mRx_LOCK = new Object();
+    private ByteBuffer mRxBuffer = null;
+    private int mSlotSize = 0;
+    private int mSlot = 0;
+
+    public int create()
+    {
+        return SUCCESS;
+    }
+
+    public int destroy()
+    {
+        return SUCCESS;
+    }
+
+    public int enable()
+    {
+        setState(AntHalDefine.ANT_HAL_STATE_ENABLING);
+        setState(AntHalDefine.ANT_HAL_STATE_ENABLED);
+        return SUCCESS;
+    }
+
+    public int disable()
+    {
+        setState(AntHalDefine.ANT_HAL_STATE_DISABLING);
+        setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
+        return SUCCESS;
+    }
+
+    public int getRadioEnabledStatus()
+    {
+        return mState;
+    }
+
+    public int txMessage(byte[] message)
+    {
+        synchronized (mSent)
+        {
+            mSent.add(message.clone());
+        }
+        return SUCCESS;
+    }
+
+    public int hardReset()
+    {
+        setState(AntHalDefine.ANT_HAL_STATE_RESETTING);
+        setState(AntHalDefine.ANT_HAL_STATE_RESET);
+        return SUCCESS;
+    }
+
+    public int setRxBuffer(ByteBuffer buffer, int slotSize)
+    {
+        synchronized (mRx_LOCK)
+        {
+            mRxBuffer = buffer;
+            mSlotSize = slotSize;
+            mSlot = 0;
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * Passes a message up as if the radio had received it. Calls are serialized, as they are
+     * on the library's receive thread.
+     *
+     * @param message A complete ANT message.
+     */
+    public void receive(byte[] message)
+    {
+        synchronized (mRx_LOCK)
+        {
+            if (mRxBuffer != null && message.length <= mSlotSize)
+            {
+                ByteBuffer slot = mRxBuffer.duplicate();
+                slot.position(mSlot * mSlotSize);
+                slot.put(message);
+                mSlot = JAntJava.nativeCb_AntRxSlotWritten(message.length);
+                return;
+            }
+
+            JAntJava.nativeCb_AntRxMessage(message);
+        }
+    }
+
+    /**
+     * @return Every message sent so far, in order.
+     */
+    public List<byte[]> getSentMessages()
+    {
+        synchronized (mSent)
+        {
+            return new ArrayList<byte[]>(mSent);
+        }
+    }
+
+    private void setState(int state)
+    {
+        mState = state;
+        JAntJava.nativeCb_AntStateChange(state);
+    }
+}
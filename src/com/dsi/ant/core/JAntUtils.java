@@ -17,11 +17,36 @@
  */
 package com.dsi.ant.core;
 
+import android.os.Build;
+import android.os.SystemClock;
+
 import java.lang.Enum;
 import java.util.EnumSet;
 
 public final class JAntUtils {
 
+   /** false on a build host, where the Android classes are not available. */
+   static final boolean ON_ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+   private static final boolean HAS_ELAPSED_REALTIME_NANOS =
+         ON_ANDROID && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+
+   /**
+    * The time to stamp received messages with. Only millisecond resolution before Android 4.2.
+    * On a build host it is {@link System#nanoTime()} instead.
+    *
+    * @return Nanoseconds since boot, including time spent in deep sleep.
+    */
+   public static long elapsedRealtimeNanos() {
+      if (HAS_ELAPSED_REALTIME_NANOS) {
+         return SystemClock.elapsedRealtimeNanos();
+      }
+      if (!ON_ANDROID) {
+         return System.nanoTime();
+      }
+      return SystemClock.elapsedRealtime() * 1000000L;
+   }
+
    public static <V, E extends Enum<E> & IJAntEnum<V>> E getEnumConst(Class<E> enumType, V constValue) {
       EnumSet<E> es = EnumSet.allOf(enumType);
 
@@ -0,0 +1,79 @@
+package com.dsi.ant.framers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Provides the {@link IAntHciBufferFramer} methods for a framer that only implements
+ * {@link IAntHciFramer}, by copying to and from the arrays the older methods use.
+ */
+public final class AntHciFramerBridge implements IAntHciBufferFramer
+{
+    private final IAntHciFramer mFramer;
+
+    /** The size of the header added by the framer, measured the first time it is needed. */
+    private volatile int mHeaderSize = -1;
+
+    /**
+     * @return framer itself if it already supports buffers, otherwise a bridge to it.
+     */
+    public static IAntHciBufferFramer adapt(IAntHciFramer framer)
+    {
+        if (framer instanceof IAntHciBufferFramer)
+        {
+            return (IAntHciBufferFramer) framer;
+        }
+        return new AntHciFramerBridge(framer);
+    }
+
+    private AntHciFramerBridge(IAntHciFramer framer)
+    {
+        mFramer = framer;
+    }
+
+    public short getCommandOpcode(byte [] message)
+    {
+        return mFramer.getCommandOpcode(message);
+    }
+
+    public byte [] packageCommand(byte [] message)
+    {
+        return mFramer.packageCommand(message);
+    }
+
+    public byte [] getANTMessage(byte [] packet) throws InvalidAntPacketException
+    {
+        return mFramer.getANTMessage(packet);
+    }
+
+    public int getCommandLength(int messageLength)
+    {
+        // There is no way to ask an older framer, so package a message once to find the size of
+        // its header. Framers add a header of the same size to every command.
+        if (mHeaderSize < 0)
+        {
+            mHeaderSize = mFramer.packageCommand(new byte [messageLength]).length - messageLength;
+        }
+        return mHeaderSize + messageLength;
+    }
+
+    public int packageCommand(byte [] message, int offset, int length, ByteBuffer dest)
+    {
+        byte [] command = message;
+        if (offset != 0 || length != message.length)
+        {
+            command = new byte [length];
+            System.arraycopy(message, offset, command, 0, length);
+        }
+
+        byte [] packaged = mFramer.packageCommand(command);
+        dest.put(packaged);
+        return packaged.length;
+    }
+
+    public ByteBuffer getANTMessage(ByteBuffer packet) throws InvalidAntPacketException
+    {
+        byte [] event = new byte [packet.remaining()];
+        packet.duplicate().get(event);
+        return ByteBuffer.wrap(mFramer.getANTMessage(event));
+    }
+}
@@ -1,8 +1,9 @@
 package com.dsi.ant.framers;
 
 import java.lang.System;
+import java.nio.ByteBuffer;
 
-public class BCM4330Framer implements IAntHciFramer
+public class BCM4330Framer implements IAntHciBufferFramer
 {
     private static final byte COMMAND_HEADER = (byte) 0xFF;
     private static final short OPCODE = (short) 0xFCEC;
@@ -17,27 +18,45 @@ public class BCM4330Framer implements IAntHciFramer
 
     public byte [] packageCommand(byte [] command)
     {
-        byte [] packaged = new byte [COMMAND_HEADER_SIZE + command.length];
-
-        packaged[0] = COMMAND_HEADER;
-        System.arraycopy(command, 0, packaged, 1, command.length);
-
+        byte [] packaged = new byte [getCommandLength(command.length)];
+        packageCommand(command, 0, command.length, ByteBuffer.wrap(packaged));
         return packaged;
     }
 
     public byte [] getANTMessage(byte [] packet) throws InvalidAntPacketException
     {
-        if (packet.length <= EVENT_HEADER_SIZE)
+        ByteBuffer message = getANTMessage(ByteBuffer.wrap(packet));
+        byte [] antMessage = new byte[message.remaining()];
+        message.get(antMessage);
+        return antMessage;
+    }
+
+    public int getCommandLength(int messageLength)
+    {
+        return COMMAND_HEADER_SIZE + messageLength;
+    }
+
+    public int packageCommand(byte [] command, int offset, int length, ByteBuffer dest)
+    {
+        dest.put(COMMAND_HEADER);
+        dest.put(command, offset, length);
+        return COMMAND_HEADER_SIZE + length;
+    }
+
+    public ByteBuffer getANTMessage(ByteBuffer packet) throws InvalidAntPacketException
+    {
+        int start = packet.position();
+        if (packet.remaining() <= EVENT_HEADER_SIZE)
         {
             throw new InvalidAntPacketException("Not an ANT packet: Invalid packet length");
         }
-        if (packet[0] != EVENT_CODE)
+        if (packet.get(start) != EVENT_CODE)
         {
             throw new InvalidAntPacketException("Not an ANT packet: Invalid vendor specific event opcode");
         }
 
-        byte [] antMessage = new byte[packet.length - EVENT_HEADER_SIZE];
-        System.arraycopy(packet, EVENT_HEADER_SIZE, antMessage, 0, antMessage.length);
+        ByteBuffer antMessage = packet.duplicate();
+        antMessage.position(start + EVENT_HEADER_SIZE);
         return antMessage;
     }
 }
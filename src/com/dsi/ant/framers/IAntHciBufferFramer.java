@@ -0,0 +1,37 @@
+package com.dsi.ant.framers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A framer that can encode into and decode from buffers owned by the caller, so that sending and
+ * receiving over HCI does not need to allocate and copy intermediate arrays.
+ *
+ * Framers that only implement {@link IAntHciFramer} are adapted with {@link AntHciFramerBridge}.
+ */
+public interface IAntHciBufferFramer extends IAntHciFramer
+{
+    /**
+     * @param messageLength The length of the message to package.
+     * @return The length of the packaged command.
+     */
+    int getCommandLength(int messageLength);
+
+    /**
+     * Packages message[offset, offset + length) into dest, starting at its position. The
+     * position is advanced past the packaged command.
+     *
+     * @return The number of bytes written.
+     * @throws java.nio.BufferOverflowException If dest has less than
+     * {@link #getCommandLength(int)} bytes remaining.
+     */
+    int packageCommand(byte [] message, int offset, int length, ByteBuffer dest);
+
+    /**
+     * Finds the ANT message in a vendor specific event without copying it.
+     *
+     * @param packet The event, from its position to its limit. The position is not changed.
+     * @return A buffer sharing content with packet, with its position at the start of the ANT
+     * message and its limit at the end of it.
+     */
+    ByteBuffer getANTMessage(ByteBuffer packet) throws InvalidAntPacketException;
+}
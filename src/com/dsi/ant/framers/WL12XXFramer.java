@@ -1,8 +1,9 @@
 package com.dsi.ant.framers;
 
 import java.lang.System;
+import java.nio.ByteBuffer;
 
-public class WL12XXFramer implements IAntHciFramer
+public class WL12XXFramer implements IAntHciBufferFramer
 {
     private static final short OPCODE = (short) 0xFDD1;
     private static final short EVENT_CODE = (short) 0x0500;
@@ -16,38 +17,56 @@ public class WL12XXFramer implements IAntHciFramer
 
     public byte [] packageCommand(byte [] command)
     {
-        byte [] packaged = new byte [COMMAND_HEADER_SIZE + command.length];
-
-        packaged[0]  = (byte)(command.length);
-        packaged[1]  = (byte)(command.length >> 8);
-        System.arraycopy(command, 0, packaged, 2, command.length);
-
+        byte [] packaged = new byte [getCommandLength(command.length)];
+        packageCommand(command, 0, command.length, ByteBuffer.wrap(packaged));
         return packaged;
     }
 
     public byte [] getANTMessage(byte [] packet) throws InvalidAntPacketException
     {
-        if (packet.length < EVENT_HEADER_SIZE)
+        ByteBuffer message = getANTMessage(ByteBuffer.wrap(packet));
+        byte [] antMessage = new byte [message.remaining()];
+        message.get(antMessage);
+        return antMessage;
+    }
+
+    public int getCommandLength(int messageLength)
+    {
+        return COMMAND_HEADER_SIZE + messageLength;
+    }
+
+    public int packageCommand(byte [] command, int offset, int length, ByteBuffer dest)
+    {
+        dest.put((byte)(length));
+        dest.put((byte)(length >> 8));
+        dest.put(command, offset, length);
+        return COMMAND_HEADER_SIZE + length;
+    }
+
+    public ByteBuffer getANTMessage(ByteBuffer packet) throws InvalidAntPacketException
+    {
+        int start = packet.position();
+        if (packet.remaining() < EVENT_HEADER_SIZE)
         {
             throw new InvalidAntPacketException("Not an ANT packet: Invalid packet length");
         }
 
-        short opcode = (short)((packet[0] << 8) | (packet[1] & 0x00FF));
+        short opcode = (short)((packet.get(start) << 8) | (packet.get(start + 1) & 0x00FF));
 
         if (opcode != EVENT_CODE)
         {
             throw new InvalidAntPacketException("Not an ANT packet: Invalid vendor specific event opcode");
         }
 
-        short messageLength = (short)((packet[2] << 8) | ( packet[3] & 0x00FF));
+        short messageLength = (short)((packet.get(start + 2) << 8) | ( packet.get(start + 3) & 0x00FF));
 
-        if(packet.length < EVENT_HEADER_SIZE + messageLength)
+        if(packet.remaining() < EVENT_HEADER_SIZE + messageLength)
         {
             throw new InvalidAntPacketException("Not an ANT packet: Invalid packet length");
         }
 
-        byte [] antMessage = new byte [packet.length - EVENT_HEADER_SIZE];
-        System.arraycopy(packet, EVENT_HEADER_SIZE, antMessage, 0, antMessage.length);
+        ByteBuffer antMessage = packet.duplicate();
+        antMessage.position(start + EVENT_HEADER_SIZE);
         return antMessage;
     }
 }
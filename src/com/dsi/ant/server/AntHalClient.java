@@ -0,0 +1,578 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * A callback registered by a client of the service, through either version of the interface.
+ * Lets the rest of the service talk to a client without caring which one it bound with, and
+ * holds the per client delivery settings.
+ *
+ * Once registered, a client has its own {@link RxDeliveryQueue} and only receives messages for
+ * the ANT channels it subscribed to.
+ */
+abstract class AntHalClient
+{
+    private static final String TAG = "AntHalClient";
+    private static final boolean DEBUG = false;
+
+    /** Subscribes to every channel. */
+    static final int ALL_CHANNELS = 0xFFFFFFFF;
+
+    /** The process that made the binder call this client was created for. */
+    private final int mPid = Binder.getCallingPid();
+
+    private volatile int mChannelMask = ALL_CHANNELS;
+    private volatile boolean mTransferReports = false;
+    private volatile RxDeliveryQueue mRxQueue;
+    /** Only set once linked to the client's binder. */
+    private IBinder.DeathRecipient mDeathRecipient;
+
+    /**
+     * @return The binder of the underlying callback, for comparing registrations.
+     */
+    abstract IBinder asBinder();
+
+    /**
+     * @return The bind action of the interface the client registered through.
+     */
+    abstract String getInterfaceName();
+
+    abstract void stateChanged(int state) throws RemoteException;
+
+    abstract void rxMessage(byte[] message) throws RemoteException;
+
+    /**
+     * Reports the result of an asynchronous transmit. Ignored by clients that cannot submit them.
+     */
+    void txComplete(int requestId, int result) throws RemoteException {}
+
+    /**
+     * @return true if the client can be told how its acknowledged and burst transfers went.
+     */
+    boolean supportsTxTransferReports()
+    {
+        return false;
+    }
+
+    /**
+     * Reports how an acknowledged or burst transfer went. Ignored by clients that do not
+     * {@link #supportsTxTransferReports()}, which still get the raw channel events.
+     *
+     * @param status One of the AntHalDefine.ANT_HAL_TX_TRANSFER_X values.
+     */
+    void txTransferComplete(int requestId, int channel, int status, long latencyNanos)
+            throws RemoteException {}
+
+    /**
+     * @return true if the client can receive several messages in one call.
+     */
+    boolean supportsRxBatching()
+    {
+        return false;
+    }
+
+    /**
+     * Delivers several received messages at once. Clients that do not
+     * {@link #supportsRxBatching()} are given them one at a time.
+     *
+     * @param messages The messages one after the other, each as for {@link #rxMessage(byte[])}.
+     */
+    void rxMessages(byte[] messages, int count) throws RemoteException
+    {
+        int offset = 0;
+        for (int i = 0; i < count && offset < messages.length; i++)
+        {
+            int length = Math.min((messages[offset + AntMessage.OFFSET_SIZE] & 0xFF)
+                    + AntMessage.OFFSET_DATA, messages.length - offset);
+            byte[] message = new byte[length];
+            System.arraycopy(messages, offset, message, 0, length);
+            rxMessage(message);
+            offset += length;
+        }
+    }
+
+    /**
+     * @return true if the client can be given the time each message was received.
+     */
+    boolean supportsRxTimestamps()
+    {
+        return false;
+    }
+
+    /**
+     * Delivers a received message with the time it was received. Clients that do not
+     * {@link #supportsRxTimestamps()} are given the message alone.
+     */
+    void rxMessage(byte[] message, long receivedNanos) throws RemoteException
+    {
+        rxMessage(message);
+    }
+
+    /**
+     * Delivers several received messages at once with the time each was received. Clients that
+     * do not {@link #supportsRxTimestamps()} are given the messages alone.
+     */
+    void rxMessages(byte[] messages, int count, long[] receivedNanos) throws RemoteException
+    {
+        rxMessages(messages, count);
+    }
+
+    /**
+     * @return true if the client can receive whole burst transfers.
+     */
+    boolean supportsRxBurst()
+    {
+        return false;
+    }
+
+    /**
+     * Delivers an assembled burst transfer. Clients that do not {@link #supportsRxBurst()} are
+     * given a complete transfer as standard burst packets again, and nothing for the rest.
+     *
+     * @param status One of the AntHalDefine.ANT_HAL_RX_BURST_X values.
+     */
+    void rxBurst(int channel, byte[] data, int length, int status) throws RemoteException
+    {
+        if (status != AntHalDefine.ANT_HAL_RX_BURST_COMPLETE || length == 0) return;
+
+        byte[] payload = new byte[length];
+        System.arraycopy(data, 0, payload, 0, length);
+        for (byte[] packet : AntMessage.buildBurst(channel, payload,
+                AntMessage.BURST_PACKET_LENGTH))
+        {
+            // Without the LL LL header only used when transmitting.
+            byte[] message = new byte[packet.length - AntMessage.TX_HEADER_SIZE];
+            System.arraycopy(packet, AntMessage.TX_HEADER_SIZE, message, 0, message.length);
+            rxMessage(message);
+        }
+    }
+
+    /**
+     * @return true if the client can read received messages from a {@link SharedRxRing}.
+     */
+    boolean supportsRxRing()
+    {
+        return false;
+    }
+
+    /**
+     * Tells the client there are new messages in its shared ring. Ignored by clients that do
+     * not {@link #supportsRxRing()}, as they never have one.
+     */
+    void rxRingReady() throws RemoteException {}
+
+    /**
+     * @return true if the client can submit messages through a {@link SharedTxRing}.
+     */
+    boolean supportsTxRing()
+    {
+        return false;
+    }
+
+    /**
+     * Tells the client there are new results in its shared TX ring. Ignored by clients that do
+     * not {@link #supportsTxRing()}, as they never have one.
+     */
+    void txRingComplete() throws RemoteException {}
+
+    /**
+     * @return true until the client has been released.
+     */
+    boolean isActive()
+    {
+        return mRxQueue != null;
+    }
+
+    /**
+     * @return true if the client was created for a binder call from the given process.
+     */
+    boolean isFromProcess(int pid)
+    {
+        return mPid == pid;
+    }
+
+    /**
+     * Starts the delivery thread, and calls onDeath if the client's process goes away.
+     *
+     * @param rxQueueSize How many received messages may wait to be delivered.
+     * @param overflowPolicy What to do with received messages once that many are waiting.
+     */
+    synchronized void start(int rxQueueSize, HalSettings.RxOverflowPolicy overflowPolicy,
+            final Runnable onDeath)
+    {
+        if (mRxQueue != null) return;
+
+        mRxQueue = new RxDeliveryQueue(this, rxQueueSize, overflowPolicy);
+        IBinder.DeathRecipient recipient = new IBinder.DeathRecipient()
+        {
+            @Override
+            public void binderDied()
+            {
+                if (DEBUG) Log.i(TAG, "Client died: " + AntHalClient.this);
+                onDeath.run();
+            }
+        };
+
+        try
+        {
+            asBinder().linkToDeath(recipient, 0);
+            mDeathRecipient = recipient;
+        }
+        catch (RemoteException e)
+        {
+            // Already dead, drop it straight away.
+            onDeath.run();
+        }
+    }
+
+    /**
+     * @param channelMask Bit n set to receive messages for ANT channel n.
+     */
+    void setChannelMask(int channelMask)
+    {
+        mChannelMask = channelMask;
+    }
+
+    /**
+     * @param channel From {@link AntMessage#getRxChannel(java.nio.ByteBuffer)}.
+     * @return true if messages for the channel should be delivered to this client. Messages
+     * that are not for a channel always are.
+     */
+    boolean isSubscribed(int channel)
+    {
+        return channel < 0 || (mChannelMask & (1 << channel)) != 0;
+    }
+
+    /**
+     * Queues a received message for delivery on the client's own thread.
+     *
+     * @param message A complete ANT message, shared with other clients so never changed.
+     * @param receivedNanos When the message was received at the transport, from
+     * {@link com.dsi.ant.core.JAntUtils#elapsedRealtimeNanos()}.
+     */
+    void receive(byte[] message, long receivedNanos)
+    {
+        RxDeliveryQueue queue = mRxQueue;
+        if (queue != null) queue.add(message, receivedNanos);
+    }
+
+    /**
+     * Turns batched delivery of received messages on or off.
+     *
+     * @param maxLatencyMicros The longest a message may wait to be delivered, 0 to turn batching off.
+     * @param maxMessages The most messages delivered at once, 1 or less to turn batching off.
+     * @return true if the settings were applied.
+     */
+    synchronized boolean setRxBatching(int maxLatencyMicros, int maxMessages)
+    {
+        boolean enable = maxLatencyMicros > 0 && maxMessages > 1;
+        if (enable && !supportsRxBatching()) return false;
+        if (mRxQueue == null) return false;
+
+        mRxQueue.setBatching(maxLatencyMicros * 1000L, maxMessages);
+        return true;
+    }
+
+    /**
+     * Turns conflation of received broadcast data on or off.
+     *
+     * @param dropUnchanged Whether broadcasts repeating the last payload are dropped as well.
+     * @return true if the settings were applied.
+     */
+    synchronized boolean setRxConflation(boolean enable, boolean dropUnchanged)
+    {
+        if (mRxQueue == null) return false;
+
+        mRxQueue.setConflation(enable, dropUnchanged);
+        return true;
+    }
+
+    /**
+     * Turns delivery of the time each message was received on or off.
+     *
+     * @return true if the setting was applied.
+     */
+    synchronized boolean setRxTimestamps(boolean enable)
+    {
+        if (enable && !supportsRxTimestamps()) return false;
+        if (mRxQueue == null) return false;
+
+        mRxQueue.setTimestamps(enable);
+        return true;
+    }
+
+    /**
+     * Turns reports of how acknowledged and burst transfers went on or off.
+     *
+     * @return true if the setting was applied.
+     */
+    boolean setTxTransferReports(boolean enable)
+    {
+        if (enable && !supportsTxTransferReports()) return false;
+
+        mTransferReports = enable;
+        return true;
+    }
+
+    /**
+     * Passes on how a transfer sent by this client went, if the client asked to be told.
+     */
+    void reportTransfer(int requestId, int channel, int status, long latencyNanos)
+            throws RemoteException
+    {
+        if (mTransferReports) txTransferComplete(requestId, channel, status, latencyNanos);
+    }
+
+    /**
+     * Turns assembly of received burst transfers on or off.
+     *
+     * @param maxSize The largest transfer delivered in one piece, in bytes.
+     * @return true if the setting was applied.
+     */
+    synchronized boolean setRxBurstAssembly(boolean enable, int maxSize)
+    {
+        if (enable && !supportsRxBurst()) return false;
+        if (mRxQueue == null) return false;
+
+        mRxQueue.setBurstAssembly(enable, maxSize);
+        return true;
+    }
+
+    /**
+     * Delivers received messages through a shared ring from now on.
+     *
+     * @return true if the ring will be used.
+     */
+    synchronized boolean setRxRing(SharedRxRing.Writer ring)
+    {
+        if (!supportsRxRing() || mRxQueue == null) return false;
+
+        mRxQueue.setSharedRing(ring);
+        return true;
+    }
+
+    /**
+     * Called when the client has read on from its shared ring.
+     */
+    void onRxRingRead()
+    {
+        RxDeliveryQueue queue = mRxQueue;
+        if (queue != null) queue.onSharedRingRead();
+    }
+
+    /**
+     * Stops the delivery thread once anything already queued has been delivered. Called once the
+     * client is no longer registered.
+     */
+    synchronized void release()
+    {
+        if (mRxQueue == null) return;
+
+        mRxQueue.stop();
+        mRxQueue = null;
+        if (mDeathRecipient != null)
+        {
+            asBinder().unlinkToDeath(mDeathRecipient, 0);
+            mDeathRecipient = null;
+        }
+    }
+
+    void dump(PrintWriter pw)
+    {
+        pw.println("  Client " + this + String.format(" channels=0x%08X", mChannelMask));
+        RxDeliveryQueue queue = mRxQueue;
+        if (queue != null) queue.dump(pw);
+    }
+
+    static AntHalClient wrap(final IAntHalCallback callback)
+    {
+        if (callback == null) return null;
+
+        return new AntHalClient()
+        {
+            @Override
+            IBinder asBinder()
+            {
+                return callback.asBinder();
+            }
+
+            @Override
+            String getInterfaceName()
+            {
+                return IAntHal.class.getName();
+            }
+
+            @Override
+            void stateChanged(int state) throws RemoteException
+            {
+                callback.antHalStateChanged(state);
+            }
+
+            @Override
+            void rxMessage(byte[] message) throws RemoteException
+            {
+                callback.antHalRxMessage(message);
+            }
+
+            @Override
+            public String toString()
+            {
+                return callback.toString();
+            }
+        };
+    }
+
+    static AntHalClient wrap(final IAntHal2Callback callback)
+    {
+        if (callback == null) return null;
+
+        return new AntHalClient()
+        {
+            @Override
+            IBinder asBinder()
+            {
+                return callback.asBinder();
+            }
+
+            @Override
+            String getInterfaceName()
+            {
+                return IAntHal2.class.getName();
+            }
+
+            @Override
+            void stateChanged(int state) throws RemoteException
+            {
+                callback.antHalStateChanged(state);
+            }
+
+            @Override
+            void rxMessage(byte[] message) throws RemoteException
+            {
+                callback.antHalRxMessage(message);
+            }
+
+            @Override
+            void txComplete(int requestId, int result) throws RemoteException
+            {
+                callback.antHalTxComplete(requestId, result);
+            }
+
+            @Override
+            boolean supportsRxBatching()
+            {
+                return true;
+            }
+
+            @Override
+            void rxMessages(byte[] messages, int count) throws RemoteException
+            {
+                callback.antHalRxMessages(messages, count);
+            }
+
+            @Override
+            boolean supportsRxTimestamps()
+            {
+                return true;
+            }
+
+            @Override
+            void rxMessage(byte[] message, long receivedNanos) throws RemoteException
+            {
+                callback.antHalRxMessageTimed(message, receivedNanos);
+            }
+
+            @Override
+            void rxMessages(byte[] messages, int count, long[] receivedNanos)
+                    throws RemoteException
+            {
+                callback.antHalRxMessagesTimed(messages, count, receivedNanos);
+            }
+
+            @Override
+            boolean supportsTxTransferReports()
+            {
+                return true;
+            }
+
+            @Override
+            void txTransferComplete(int requestId, int channel, int status, long latencyNanos)
+                    throws RemoteException
+            {
+                callback.antHalTxTransferComplete(requestId, channel, status, latencyNanos);
+            }
+
+            @Override
+            boolean supportsRxBurst()
+            {
+                return true;
+            }
+
+            @Override
+            void rxBurst(int channel, byte[] data, int length, int status) throws RemoteException
+            {
+                // The buffer is pooled, only the transfer itself goes to the client.
+                byte[] transfer = data;
+                if (data.length != length)
+                {
+                    transfer = new byte[length];
+                    System.arraycopy(data, 0, transfer, 0, length);
+                }
+                callback.antHalRxBurst(channel, transfer, length, status);
+            }
+
+            @Override
+            boolean supportsRxRing()
+            {
+                return true;
+            }
+
+            @Override
+            void rxRingReady() throws RemoteException
+            {
+                callback.antHalRxRingReady();
+            }
+
+            @Override
+            boolean supportsTxRing()
+            {
+                return true;
+            }
+
+            @Override
+            void txRingComplete() throws RemoteException
+            {
+                callback.antHalTxRingComplete();
+            }
+
+            @Override
+            public String toString()
+            {
+                return callback.toString();
+            }
+        };
+    }
+}
@@ -156,4 +156,34 @@ public class AntHalDefine
 
         return string;
     }
+
+
+    // ANT HAL Received Burst Status
+
+    /** The whole burst transfer was received. */
+    public static final int ANT_HAL_RX_BURST_COMPLETE           = 0;
+
+    /** Part of a burst transfer too large to deliver at once, more will follow. */
+    public static final int ANT_HAL_RX_BURST_PARTIAL            = 1;
+
+    /** The burst transfer failed, only the data received before the failure is given. */
+    public static final int ANT_HAL_RX_BURST_FAILED             = 2;
+
+
+    // ANT HAL Transmitted Transfer Status
+
+    /** The radio reported EVENT_TRANSFER_TX_COMPLETED, the transfer was acknowledged. */
+    public static final int ANT_HAL_TX_TRANSFER_COMPLETED       = 0;
+
+    /** The radio reported EVENT_TRANSFER_TX_FAILED. */
+    public static final int ANT_HAL_TX_TRANSFER_FAILED          = 1;
+
+    /** The radio refused the transfer, for example as another was still in progress. */
+    public static final int ANT_HAL_TX_TRANSFER_REJECTED        = 2;
+
+    /** The channel closed, or the radio was disabled, before the transfer finished. */
+    public static final int ANT_HAL_TX_TRANSFER_CHANNEL_CLOSED  = 3;
+
+    /** No outcome was seen for the transfer in time. */
+    public static final int ANT_HAL_TX_TRANSFER_TIMED_OUT       = 4;
 }
@@ -0,0 +1,324 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and helpers for the raw ANT messages passed through the service.
+ *
+ * Received messages are a single ANT packet: II JJ ------ (size, id, data).
+ * Transmitted messages have a 2 byte little endian length header in front: LL LL II JJ ------.
+ */
+final class AntMessage
+{
+    /** Length of the LL LL header on transmitted messages. */
+    static final int TX_HEADER_SIZE = 2;
+
+    static final int OFFSET_SIZE = 0;
+    static final int OFFSET_ID = 1;
+    static final int OFFSET_DATA = 2;
+
+    static final int BROADCAST_PAYLOAD_SIZE = 8;
+
+    /** The largest transmitted message, as the size byte allows no more than 255 data bytes. */
+    static final int MAX_TX_MESSAGE_SIZE = TX_HEADER_SIZE + OFFSET_DATA + 0xFF;
+
+    static final byte MESG_RESPONSE_EVENT_ID = (byte) 0x40;
+    static final byte MESG_BROADCAST_DATA_ID = (byte) 0x4E;
+    static final byte MESG_ACKNOWLEDGED_DATA_ID = (byte) 0x4F;
+    static final byte MESG_BURST_DATA_ID = (byte) 0x50;
+    static final byte MESG_CHANNEL_ID_ID = (byte) 0x51;
+    static final byte MESG_CHANNEL_STATUS_ID = (byte) 0x52;
+    static final byte MESG_ADV_BURST_DATA_ID = (byte) 0x72;
+    static final byte MESG_SYSTEM_RESET_ID = (byte) 0x4A;
+
+    /** The message id in a response/event message that marks it as a channel event. */
+    private static final byte EVENT_MESSAGE_CODE = (byte) 0x01;
+
+    /** Standard burst packets always carry 8 bytes. */
+    static final int BURST_PACKET_LENGTH = 8;
+    /** Advanced burst packets may carry 8, 16 or 24 bytes. */
+    static final int MAX_ADV_BURST_PACKET_LENGTH = 24;
+
+    static final int CHANNEL_NUMBER_MASK = 0x1F;
+    static final int BURST_SEQUENCE_SHIFT = 5;
+    static final int BURST_SEQUENCE_MASK = 0x60;
+    static final int BURST_LAST_PACKET = 0x80;
+
+    private AntMessage() {}
+
+    /**
+     * Gets the message as an array, without copying if the buffer already covers exactly the
+     * whole of its backing array.
+     *
+     * @param message The message from its position to its limit. The position is not changed.
+     */
+    static byte[] toArray(ByteBuffer message)
+    {
+        if (message.hasArray() && message.arrayOffset() == 0 && message.position() == 0
+                && message.limit() == message.array().length)
+        {
+            return message.array();
+        }
+
+        byte[] array = new byte[message.remaining()];
+        message.duplicate().get(array);
+        return array;
+    }
+
+    /**
+     * Finds the channel a transmit message carries data for.
+     *
+     * @param message The message in the IAntHal ANTTxMessage format.
+     * @return The ANT channel number, or -1 if the message is not channel data (it is a control
+     * or configuration command).
+     */
+    static int getTxDataChannel(byte[] message)
+    {
+        if (message.length <= TX_HEADER_SIZE + OFFSET_DATA) return -1;
+
+        switch (message[TX_HEADER_SIZE + OFFSET_ID])
+        {
+            case MESG_BROADCAST_DATA_ID:
+            case MESG_ACKNOWLEDGED_DATA_ID:
+            case MESG_BURST_DATA_ID:
+            case MESG_ADV_BURST_DATA_ID:
+                return message[TX_HEADER_SIZE + OFFSET_DATA] & CHANNEL_NUMBER_MASK;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Finds the channel a transmit message is about, data or command.
+     *
+     * @param message The message in the IAntHal ANTTxMessage format.
+     * @return The ANT channel number, or -1 if the message is not about a single channel.
+     */
+    static int getTxChannel(byte[] message)
+    {
+        int channel = getTxDataChannel(message);
+        if (channel >= 0) return channel;
+
+        if (message.length <= TX_HEADER_SIZE + OFFSET_DATA) return -1;
+        if (!isChannelCommand(message[TX_HEADER_SIZE + OFFSET_ID])) return -1;
+
+        return message[TX_HEADER_SIZE + OFFSET_DATA] & CHANNEL_NUMBER_MASK;
+    }
+
+    /**
+     * @param id A command's message id.
+     * @return true if the first byte of the command is the channel it configures. Other
+     * commands start with a network number or a filler byte instead.
+     */
+    static boolean isChannelCommand(byte id)
+    {
+        switch (id)
+        {
+            case 0x41: // Unassign channel
+            case 0x42: // Assign channel
+            case 0x43: // Channel period
+            case 0x44: // Search timeout
+            case 0x45: // Channel RF frequency
+            case 0x49: // Search waveform
+            case 0x4B: // Open channel
+            case 0x4C: // Close channel
+            case MESG_CHANNEL_ID_ID:
+            case 0x59: // Add channel id to list
+            case 0x5A: // Config id list
+            case 0x60: // Set channel transmit power
+            case 0x63: // Low priority search timeout
+            case 0x65: // Serial number set channel id
+            case 0x70: // Frequency agility
+            case 0x71: // Proximity search
+            case 0x75: // Channel search priority
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param message A complete received message.
+     * @return The channel of a broadcast data message, or -1 if the message is anything else.
+     */
+    static int getBroadcastChannel(byte[] message)
+    {
+        if (message.length < OFFSET_DATA + 1 + BROADCAST_PAYLOAD_SIZE) return -1;
+        if (message[OFFSET_ID] != MESG_BROADCAST_DATA_ID) return -1;
+
+        return message[OFFSET_DATA] & CHANNEL_NUMBER_MASK;
+    }
+
+    /**
+     * Compares the 8 byte payloads of two broadcast data messages, ignoring any extended data.
+     *
+     * @param previous May be null.
+     */
+    static boolean isSameBroadcastPayload(byte[] message, byte[] previous)
+    {
+        if (previous == null) return false;
+
+        for (int i = OFFSET_DATA + 1; i < OFFSET_DATA + 1 + BROADCAST_PAYLOAD_SIZE; i++)
+        {
+            if (message[i] != previous[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the channel a received message is about.
+     *
+     * @param message A complete received message.
+     * @return The ANT channel number, or -1 if the message is not about a single channel.
+     */
+    static int getRxChannel(byte[] message)
+    {
+        return getRxChannel(ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Finds the channel a received message is about.
+     *
+     * @param message The message from its position to its limit. The position is not changed.
+     * @return The ANT channel number, or -1 if the message is not about a single channel.
+     */
+    static int getRxChannel(ByteBuffer message)
+    {
+        if (message.remaining() <= OFFSET_DATA) return -1;
+
+        int start = message.position();
+        switch (message.get(start + OFFSET_ID))
+        {
+            case MESG_RESPONSE_EVENT_ID:
+                // Responses to commands that are not about a channel start with a network
+                // number or a filler byte instead.
+                if (message.remaining() <= OFFSET_DATA + 1) return -1;
+                if (!isChannelResponse(message.get(start + OFFSET_DATA + 1))) return -1;
+                return message.get(start + OFFSET_DATA) & CHANNEL_NUMBER_MASK;
+            case MESG_BROADCAST_DATA_ID:
+            case MESG_ACKNOWLEDGED_DATA_ID:
+            case MESG_BURST_DATA_ID:
+            case MESG_CHANNEL_ID_ID:
+            case MESG_CHANNEL_STATUS_ID:
+            case MESG_ADV_BURST_DATA_ID:
+                return message.get(start + OFFSET_DATA) & CHANNEL_NUMBER_MASK;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @param id The message id a response/event message is about.
+     * @return true if the first byte of the response is a channel number.
+     */
+    private static boolean isChannelResponse(byte id)
+    {
+        switch (id)
+        {
+            case EVENT_MESSAGE_CODE:
+            case MESG_BROADCAST_DATA_ID:
+            case MESG_ACKNOWLEDGED_DATA_ID:
+            case MESG_BURST_DATA_ID:
+            case MESG_ADV_BURST_DATA_ID:
+                return true;
+            default:
+                return isChannelCommand(id);
+        }
+    }
+
+    /**
+     * @return true if a burst packet of the given length can be sent.
+     */
+    static boolean isValidBurstPacketLength(int packetLength)
+    {
+        return packetLength == 8 || packetLength == 16 || packetLength == 24;
+    }
+
+    /**
+     * @return A reset command, which closes every channel, in the transmitted format.
+     */
+    static byte[] buildReset()
+    {
+        // 1 byte of filler.
+        int mesgSize = 1;
+        byte[] message = new byte[TX_HEADER_SIZE + OFFSET_DATA + mesgSize];
+        int packetSize = OFFSET_DATA + mesgSize;
+        message[0] = (byte) packetSize;
+        message[1] = (byte) (packetSize >> 8);
+        message[TX_HEADER_SIZE + OFFSET_SIZE] = (byte) mesgSize;
+        message[TX_HEADER_SIZE + OFFSET_ID] = MESG_SYSTEM_RESET_ID;
+        return message;
+    }
+
+    /**
+     * Splits a burst transfer into transmit messages, one ANT packet each, with the burst
+     * sequence numbers filled in. The last packet is padded with zeros.
+     *
+     * @param channel The ANT channel number.
+     * @param payload The data to send, at least 1 byte.
+     * @param packetLength 8 to send standard burst packets, 16 or 24 to send advanced burst
+     * packets.
+     * @return The messages in the order they must be sent.
+     */
+    static byte[][] buildBurst(int channel, byte[] payload, int packetLength)
+    {
+        byte id = (packetLength == BURST_PACKET_LENGTH) ?
+                MESG_BURST_DATA_ID : MESG_ADV_BURST_DATA_ID;
+        int packetCount = (payload.length + packetLength - 1) / packetLength;
+        byte[][] messages = new byte[packetCount][];
+
+        for (int i = 0; i < packetCount; i++)
+        {
+            // 1 byte of channel/sequence, then the data.
+            int mesgSize = 1 + packetLength;
+            byte[] message = new byte[TX_HEADER_SIZE + OFFSET_DATA + mesgSize];
+            int packetSize = OFFSET_DATA + mesgSize;
+            message[0] = (byte) packetSize;
+            message[1] = (byte) (packetSize >> 8);
+            message[TX_HEADER_SIZE + OFFSET_SIZE] = (byte) mesgSize;
+            message[TX_HEADER_SIZE + OFFSET_ID] = id;
+            message[TX_HEADER_SIZE + OFFSET_DATA] = getBurstChannelByte(channel, i, packetCount);
+
+            int offset = i * packetLength;
+            System.arraycopy(payload, offset, message, TX_HEADER_SIZE + OFFSET_DATA + 1,
+                    Math.min(packetLength, payload.length - offset));
+
+            messages[i] = message;
+        }
+
+        return messages;
+    }
+
+    /**
+     * The first packet of a burst has sequence 0, the following packets cycle through 1, 2 and 3,
+     * and the last packet also has the last packet bit set.
+     */
+    private static byte getBurstChannelByte(int channel, int index, int count)
+    {
+        int sequence = (index == 0) ? 0 : ((index - 1) % 3) + 1;
+        int value = (channel & CHANNEL_NUMBER_MASK) | (sequence << BURST_SEQUENCE_SHIFT);
+        if (index == count - 1)
+        {
+            value |= BURST_LAST_PACKET;
+        }
+        return (byte) value;
+    }
+}
@@ -18,7 +18,11 @@
 
 package com.dsi.ant.server;
 
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -31,8 +35,8 @@ import android.app.Service;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
-import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 import com.dsi.ant.core.*;
@@ -41,12 +45,20 @@ import com.dsi.ant.server.AntHalDefine;
 import com.dsi.ant.server.HalSettings.Transport;
 import com.dsi.ant.server.IAntHal;
 import com.dsi.ant.server.IAntHalCallback;
-import com.dsi.ant.server.VendorSpecificStateMachine.CommandCompleteCallback;
+import com.dsi.ant.server.IAntHal2;
+import com.dsi.ant.server.IAntHal2Callback;
 import com.dsi.ant.server.Version;
+import com.dsi.ant.framers.AntHciFramerBridge;
+import com.dsi.ant.framers.IAntHciBufferFramer;
 import com.dsi.ant.framers.IAntHciFramer;
 import com.dsi.ant.framers.IAntHciFramer.InvalidAntPacketException;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class AntService extends Service
 {
@@ -64,6 +76,9 @@ public class AntService extends Service
      */
     private static final boolean ALLOW_BACKGROUND_USAGE = true;
 
+    /** Set on the intent that starts the service once boot has completed. */
+    private static final String EXTRA_BOOT = "com.dsi.ant.server.extra.BOOT";
+
     public static final String ANT_SERVICE = "AntService";
 
     /**
@@ -74,19 +89,23 @@ public class AntService extends Service
     public static final String ANT_ADMIN_PERMISSION = "com.dsi.ant.permission.ANT_ADMIN";
 
     private JAntJava mJAnt = null;
-    private IAntHciFramer mFramer = null;
+    private IAntHciBufferFramer mFramer = null;
 
     private boolean mInitialized = false;
 
     private Object mChangeAntPowerState_LOCK = new Object();
     private static Object sAntHalServiceDestroy_LOCK = new Object();
 
-    /** Callback object for sending events to the upper layers */
-    private volatile IAntHalCallback mCallback;
     /**
-     * Used for synchronizing changes to {@link #mCallback}, {@link #mCallbackMap}, and
+     * Callback objects for sending events to the upper layers, for the current user. Every
+     * registered callback is a subscriber, and receives the messages for its channels.
+     */
+    private volatile CopyOnWriteArrayList<AntHalClient> mCallbacks =
+            new CopyOnWriteArrayList<AntHalClient>();
+    /**
+     * Used for synchronizing changes to {@link #mCallbacks}, {@link #mCallbackMap}, and
      * {@link #mCurrentUser}. Does not need to be used where a one-time read of the
-     * {@link #mCallback} value is being done, however ALL WRITE ACCESSES must use this lock.
+     * {@link #mCallbacks} value is being done, however ALL WRITE ACCESSES must use this lock.
      */
     private final Object mUserCallback_LOCK = new Object();
 
@@ -96,10 +115,10 @@ public class AntService extends Service
     private volatile UserHandle mCurrentUser;
 
     /**
-     * Map containing the callback set for each current user.
+     * Map containing the callbacks set for each current user.
      */
-    private final HashMap<UserHandle, IAntHalCallback> mCallbackMap =
-            new HashMap<UserHandle, IAntHalCallback>();
+    private final HashMap<UserHandle, CopyOnWriteArrayList<AntHalClient>> mCallbackMap =
+            new HashMap<UserHandle, CopyOnWriteArrayList<AntHalClient>>();
 
     private final VendorSpecificStateMachine.BTVSCallbacks mVSStateCallbacks =
         new VendorSpecificStateMachine.BTVSCallbacks()
@@ -111,6 +130,7 @@ public class AntService extends Service
                 {
                     mVSInterfaceUp = true;
                     mWaitingForVSState = false;
+                    publishVSState();
                     mVSState_LOCK.notifyAll();
 
                     if(HalSettings.TRANSPORT == Transport.HCI)
@@ -128,19 +148,26 @@ public class AntService extends Service
                 {
                     mVSInterfaceUp = false;
                     mWaitingForVSState = false;
+                    mVSStandby = false;
+                    publishVSState();
                     mVSState_LOCK.notifyAll();
                 }
             }
 
             @Override
-            public void onEventReceived(byte [] params)
+            public void onEventReceived(byte [] params, long receivedNanos)
             {
+                // The radio is disabled as far as clients know.
+                if (mVSStandby) return;
+
                 if (mFramer != null)
                 {
                     try
                     {
-                        byte[] antMessage = mFramer.getANTMessage(params);
-                        receiveMessage(antMessage);
+                        // A view of the event, so the message is only copied once it is known
+                        // how the client wants it.
+                        ByteBuffer antMessage = mFramer.getANTMessage(ByteBuffer.wrap(params));
+                        receiveMessage(antMessage, receivedNanos);
                     } catch (InvalidAntPacketException e)
                     {
                         // Wasn't a valid ant message, drop the packet.
@@ -151,55 +178,187 @@ public class AntService extends Service
         };
 
 
-    private final CommandCompleteCallback mVSEnableCallback = new CommandCompleteCallback()
+    /** Wakes whoever waits on mVSState_LOCK once an interface operation is done. */
+    private final VSFuture.Listener mVSOperationDone = new VSFuture.Listener()
     {
         @Override
-        public void onCommandComplete(byte [] parameters)
+        public void onDone(VSFuture<?> future)
         {
             synchronized (mVSState_LOCK)
             {
-                if (parameters == null || parameters.length < 1 || parameters[0] != 0)
-                {
-                    mVSEnableResult = false;
-                }
-                else
-                {
-                    mVSEnableResult = true;
-                }
-
                 mVSState_LOCK.notifyAll();
             }
         }
     };
 
-    private final CommandCompleteCallback mCommandCompleteCallback = new CommandCompleteCallback()
+    private boolean mVSInterfaceUp = false;
+    private boolean mWaitingForVSState = false;
+    private Boolean mVSEnableResult = false;
+
+    /**
+     * The radio is disabled but the vendor specific interface has been kept up for a quick
+     * enable, see {@link HalSettings#HCI_STANDBY_LINGER_MS}. Only written with mVSState_LOCK
+     * held.
+     */
+    private volatile boolean mVSStandby = false;
+    // Only used with mVSState_LOCK held.
+    private long mStandbyHits = 0;
+    private long mStandbyMisses = 0;
+    private long mStandbyExpired = 0;
+
+    /** The vendor specific interface's state, so it can be read without taking mVSState_LOCK. */
+    private static final class VSSnapshot
     {
-        @Override
-        public void onCommandComplete(byte [] parameters)
+        final boolean interfaceUp;
+        final boolean waiting;
+        final Boolean enableResult;
+        final boolean standby;
+
+        VSSnapshot(boolean interfaceUp, boolean waiting, Boolean enableResult, boolean standby)
         {
-            synchronized (mVSState_LOCK)
+            this.interfaceUp = interfaceUp;
+            this.waiting = waiting;
+            this.enableResult = enableResult;
+            this.standby = standby;
+        }
+
+        /**
+         * @return true if the interface is anything other than idle.
+         */
+        boolean isBusy()
+        {
+            return waiting || interfaceUp;
+        }
+
+        /**
+         * @return The {@link AntHalDefine} state of the radio when HCI is the transport.
+         */
+        int getHciState()
+        {
+            if (standby)
             {
-                if (parameters == null || parameters.length < 1 || parameters[0] != 0)
-                {
-                    mCommandCompleteResult = false;
-                }
-                else
-                {
-                    mCommandCompleteResult = true;
-                }
-                mVSState_LOCK.notify();
+                return AntHalDefine.ANT_HAL_STATE_DISABLED;
+            }
+            else if (enableResult == null)
+            {
+                // Looks like we are enabled, but not sure yet.
+                return AntHalDefine.ANT_HAL_STATE_ENABLING;
             }
+            else if (waiting)
+            {
+                return interfaceUp ?
+                    AntHalDefine.ANT_HAL_STATE_DISABLING
+                    : AntHalDefine.ANT_HAL_STATE_ENABLING;
+            }
+            return interfaceUp ?
+                AntHalDefine.ANT_HAL_STATE_ENABLED
+                : AntHalDefine.ANT_HAL_STATE_DISABLED;
         }
-    };
+    }
 
-    private boolean mVSInterfaceUp = false;
-    private boolean mWaitingForVSState = false;
-    private Boolean mVSEnableResult = false;
-    private Boolean mCommandCompleteResult = null;
+    /** Replaced whole on every change of the fields it copies, with mVSState_LOCK held. */
+    private final AtomicReference<VSSnapshot> mVSSnapshot = new AtomicReference<VSSnapshot>(
+            new VSSnapshot(false, false, false, false));
+
+    private final LatencyHistogram mStateQueryTime = new LatencyHistogram("getAntState");
+    /** How long power transitions hold mVSState_LOCK, including the waits they make in it. */
+    private final LatencyHistogram mVSLockHold = new LatencyHistogram("VS lock held");
+
+    /**
+     * How long each phase of starting up took, in nanoseconds, in the order they ran. Guarded by
+     * itself.
+     */
+    private final LinkedHashMap<String, Long> mStartupPhases = new LinkedHashMap<String, Long>();
+    private boolean mPrewarmPosted = false;
 
     private VendorSpecificStateMachine mVSState;
     private final Object mVSState_LOCK = new Object();
 
+    /** Spaces out HCI commands while the controller is busy. */
+    private final HciTxPacer mHciTxPacer = new HciTxPacer(
+            HalSettings.HCI_COMMAND_MIN_RETRY_SLEEP_US,
+            HalSettings.HCI_COMMAND_RETRY_SLEEP_MS * 1000L);
+
+    /** Bounds the number of ANT messages waiting on an HCI command complete at once. */
+    private final HciCommandWindow mHciCommandWindow =
+            new HciCommandWindow(HalSettings.HCI_COMMAND_WINDOW);
+
+    /** Sends messages for the TX writer over the configured transport. */
+    private final TxWriter.Sender mSender = new TxWriter.Sender()
+    {
+        @Override
+        public void send(byte[] message, TxWriter.SendCallback callback)
+        {
+            switch (HalSettings.TRANSPORT)
+            {
+                case VFS:
+                    callback.onSent(TxMessageVFS(message), false);
+                    break;
+                case HCI:
+                    TxMessageHCI(message, callback);
+                    break;
+            }
+        }
+
+        @Override
+        public int getMaxOutstanding()
+        {
+            return (HalSettings.TRANSPORT == Transport.HCI) ? mHciCommandWindow.getSize() : 1;
+        }
+
+        @Override
+        public int getMaxAttempts()
+        {
+            return (HalSettings.TRANSPORT == Transport.HCI) ? HalSettings.HCI_COMMAND_RETRIES : 1;
+        }
+
+        @Override
+        public long getSendDelayMicros()
+        {
+            return (HalSettings.TRANSPORT == Transport.HCI) ? mHciTxPacer.getSendDelayMicros() : 0;
+        }
+
+        @Override
+        public long getRetryDelayMicros()
+        {
+            return (HalSettings.TRANSPORT == Transport.HCI) ? mHciTxPacer.getRetryDelayMicros() : 0;
+        }
+    };
+
+    /** Every enable and disable runs on the power executor's thread, one at a time. */
+    private final PowerExecutor mPowerExecutor = new PowerExecutor(new PowerExecutor.Power()
+    {
+        @Override
+        public int getState()
+        {
+            return doGetAntState(true);
+        }
+
+        @Override
+        public int enable()
+        {
+            return enableBlocking();
+        }
+
+        @Override
+        public int disable()
+        {
+            return disableBlocking(true);
+        }
+    });
+
+    /** Matches acknowledged and burst transfers sent to the channel events reporting on them. */
+    private final TransferTracker mTransferTracker = new TransferTracker();
+
+    /** All ANT messages are sent from the writer thread, binder threads only queue them. */
+    private final TxWriter mTxWriter = new TxWriter(mSender, mTransferTracker,
+            HalSettings.TX_QUEUE_SIZE, HalSettings.TX_BACKLOG_MAX_REQUESTS,
+            HalSettings.TX_BACKLOG_MAX_DELAY_MS);
+
+    /** From a message being received at the transport to it being handed to the clients. */
+    private final LatencyHistogram mRxServiceLatency =
+            new LatencyHistogram("RX received to service");
+
     /**
      * Receives {@link Intent#ACTION_USER_SWITCHED} when we are not allowing background users
      * in order to clear the current user at the appropriate time.
@@ -225,6 +384,25 @@ public class AntService extends Service
         return ( null != context.startService(new Intent(IAntHal.class.getName())) );
     }
 
+    /**
+     * Starts the service once boot has completed, which also runs the optional pre-warm, see
+     * {@link HalSettings#HCI_BOOT_PREWARM}.
+     */
+    public static boolean startServiceAtBoot(Context context)
+    {
+        Intent intent = new Intent(IAntHal.class.getName());
+        intent.putExtra(EXTRA_BOOT, true);
+        return ( null != context.startService(intent) );
+    }
+
+    private void recordPhase(String name, long nanos)
+    {
+        synchronized (mStartupPhases)
+        {
+            mStartupPhases.put(name, nanos);
+        }
+    }
+
     /**
      * Calls back the registered callback with the change to the new state
      * @param state the {@link AntHalDefine} state
@@ -236,14 +414,14 @@ public class AntService extends Service
 
             // Use caching instead of synchronization so that we do not have to hold a lock during a callback.
             // It is safe to not hold the lock because we are not doing any write accesses.
-            IAntHalCallback callback = mCallback;
-            if (callback != null)
+            CopyOnWriteArrayList<AntHalClient> callbacks = mCallbacks;
+            for (AntHalClient callback : callbacks)
             {
                 try
                 {
                     if(DEBUG) Log.d(TAG, "Calling status changed callback "+ callback.toString());
 
-                    callback.antHalStateChanged(state);
+                    callback.stateChanged(state);
                 }
                 catch (RemoteException e)
                 {
@@ -252,11 +430,19 @@ public class AntService extends Service
                     if(DEBUG) Log.e(TAG, "ANT HAL State Changed callback failure in application", e);
                 }
             }
-            else
+            if (callbacks.isEmpty())
             {
                 if(DEBUG) Log.d(TAG, "Calling status changed callback is null");
             }
         }
+
+        if (state == AntHalDefine.ANT_HAL_STATE_DISABLED
+                || state == AntHalDefine.ANT_HAL_STATE_RESET)
+        {
+            // Every channel is closed, no more events will come for transfers still followed.
+            mTransferTracker.closeAll();
+        }
+        mPowerExecutor.onStateChanged();
     }
 
     /**
@@ -269,7 +455,7 @@ public class AntService extends Service
         {
             setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
             mCurrentUser = null;
-            mCallback = null;
+            mCallbacks = new CopyOnWriteArrayList<AntHalClient>();
             doSetAntState(AntHalDefine.ANT_HAL_STATE_DISABLED);
         }
     }
@@ -344,7 +530,7 @@ public class AntService extends Service
                         // function to prevent lock ordering issues.
                         setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
                         mCurrentUser = callingUser;
-                        mCallback = mCallbackMap.get(callingUser);
+                        mCallbacks = getUserCallbacks(callingUser);
                         setState(doGetAntState(true));
                     } else
                     {
@@ -436,6 +622,7 @@ public class AntService extends Service
     {
         if(DEBUG) Log.v(TAG, "doGetAntState start");
 
+        long startNanos = System.nanoTime();
         int retState = AntHalDefine.ANT_HAL_STATE_DISABLED;
         switch (HalSettings.TRANSPORT)
         {
@@ -451,40 +638,17 @@ public class AntService extends Service
                 retState = mJAnt.getRadioEnabledStatus(); // ANT state is native state
 
                 // When using an HCI enable command we may need to override the result.
-                if(HalSettings.HCI_ENABLE)
+                if(HalSettings.HCI_ENABLE && mVSSnapshot.get().isBusy())
                 {
-                    synchronized (mVSState_LOCK)
-                    {
-                        if(mWaitingForVSState || mVSInterfaceUp) // If the interface is anything other than idle.
-                        {
-                            retState = AntHalDefine.ANT_HAL_STATE_ENABLING;
-                        }
-                    }
+                    retState = AntHalDefine.ANT_HAL_STATE_ENABLING;
                 }
                 break;
             case HCI:
-                synchronized (mVSState_LOCK)
-                {
-                    if (mVSEnableResult == null)
-                    {
-                        // Looks like we are enabled, but not sure yet.
-                        retState = AntHalDefine.ANT_HAL_STATE_ENABLING;
-                    }
-                    else if (mWaitingForVSState)
-                    {
-                        retState = mVSInterfaceUp ?
-                            AntHalDefine.ANT_HAL_STATE_DISABLING
-                            : AntHalDefine.ANT_HAL_STATE_ENABLING;
-                    }
-                    else
-                    {
-                        retState = mVSInterfaceUp ?
-                            AntHalDefine.ANT_HAL_STATE_ENABLED
-                            : AntHalDefine.ANT_HAL_STATE_DISABLED;
-                    }
-                }
+                // Never waits on mVSState_LOCK, which transitions hold for a long time.
+                retState = mVSSnapshot.get().getHciState();
                 break;
         }
+        mStateQueryTime.record(System.nanoTime() - startNanos);
 
         if(DEBUG) Log.i(TAG, "Get ANT State = "+ retState +" / "+ AntHalDefine.getAntHalStateString(retState));
 
@@ -505,31 +669,27 @@ public class AntService extends Service
             // Check we are not already in/transitioning to the state we want
             int currentState = doGetAntState(true);
 
-            if (state) {
-                if ((AntHalDefine.ANT_HAL_STATE_ENABLED == currentState)
-                        || (AntHalDefine.ANT_HAL_STATE_ENABLING == currentState)) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Enable request ignored as already enabled/enabling");
-                    }
-
-                    return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
-                } else if (AntHalDefine.ANT_HAL_STATE_DISABLING == currentState) {
-                    Log.w(TAG, "Enable request ignored as already disabling");
+            // While the power executor has work, the state seen here may be about to change,
+            // so the request is left for the executor to check once it gets to it.
+            if (!mPowerExecutor.isBusy()) {
+                if (state) {
+                    if ((AntHalDefine.ANT_HAL_STATE_ENABLED == currentState)
+                            || (AntHalDefine.ANT_HAL_STATE_ENABLING == currentState)) {
+                        if (DEBUG) {
+                            Log.d(TAG, "Enable request ignored as already enabled/enabling");
+                        }
 
-                    return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
-                }
-            } else {
-                if ((AntHalDefine.ANT_HAL_STATE_DISABLED == currentState)
-                        || (AntHalDefine.ANT_HAL_STATE_DISABLING == currentState)) {
-                    if (DEBUG) {
-                        Log.d(TAG, "Disable request ignored as already disabled/disabling");
+                        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
                     }
+                } else {
+                    if ((AntHalDefine.ANT_HAL_STATE_DISABLED == currentState)
+                            || (AntHalDefine.ANT_HAL_STATE_DISABLING == currentState)) {
+                        if (DEBUG) {
+                            Log.d(TAG, "Disable request ignored as already disabled/disabling");
+                        }
 
-                    return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
-                } else if (AntHalDefine.ANT_HAL_STATE_ENABLING == currentState) {
-                    Log.w(TAG, "Disable request ignored as already enabling");
-
-                    return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
+                        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+                    }
                 }
             }
 
@@ -543,25 +703,50 @@ public class AntService extends Service
         return result;
     }
 
+    /**
+     * Publishes the interface's state for {@link #doGetAntState(boolean)}. Must be called with
+     * mVSState_LOCK held whenever a field it copies has changed.
+     */
+    private void publishVSState()
+    {
+        mVSSnapshot.set(new VSSnapshot(mVSInterfaceUp, mWaitingForVSState, mVSEnableResult,
+                mVSStandby));
+    }
+
+    /**
+     * Waits for an operation on the vendor specific interface to be done. Must be called with
+     * mVSState_LOCK held, which is let go of while waiting so the interface callbacks can update
+     * the state first. The state machine's own timeouts make sure the wait ends.
+     *
+     * @return false if interrupted.
+     */
+    private boolean awaitVSOperation(VSFuture<?> operation)
+    {
+        operation.addListener(mVSOperationDone);
+        while (!operation.isDone())
+        {
+            try
+            {
+                mVSState_LOCK.wait();
+            } catch (InterruptedException e)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean bringUpVSBlocking()
     {
         synchronized (mVSState_LOCK)
         {
             if(mVSInterfaceUp) return true;
-            mVSState.prepareVendorSpecificInterface();
+            VSFuture<Void> prepared = mVSState.prepareVendorSpecificInterface();
 
             mWaitingForVSState = true;
-            while(mWaitingForVSState || !mVSInterfaceUp)
-            {
-                try
-                {
-                    mVSState_LOCK.wait();
-                } catch (InterruptedException e)
-                {
-                    break;
-                }
-            }
-            return mVSInterfaceUp;
+            publishVSState();
+            awaitVSOperation(prepared);
+            return prepared.isSuccess() && mVSInterfaceUp;
         }
     }
 
@@ -570,19 +755,10 @@ public class AntService extends Service
         synchronized(mVSState_LOCK)
         {
             if(!mVSInterfaceUp) return;
-            mVSState.releaseVendorSpecificInterface();
+            VSFuture<Void> released = mVSState.releaseVendorSpecificInterface();
             mWaitingForVSState = true;
-
-            while(mWaitingForVSState || mVSInterfaceUp)
-            {
-                try
-                {
-                    mVSState_LOCK.wait();
-                } catch (InterruptedException e)
-                {
-                    break;
-                }
-            }
+            publishVSState();
+            awaitVSOperation(released);
 
             if (mVSInterfaceUp)
             {
@@ -596,21 +772,16 @@ public class AntService extends Service
         synchronized(mVSState_LOCK)
         {
             mVSEnableResult = null;
-            mVSState.sendVendorSpecificCommand(
+            publishVSState();
+            VSFuture<byte[]> completed = mVSState.sendVendorSpecificCommand(
                     HalSettings.HCI_ENABLE_OPCODE,
-                    HalSettings.HCI_ENABLE_COMMAND,
-                    mVSEnableCallback);
-            while(mVSEnableResult == null)
-            {
-                try
-                {
-                    mVSState_LOCK.wait();
-                } catch (InterruptedException e)
-                {
-                    return false;
-                }
-            }
+                    HalSettings.HCI_ENABLE_COMMAND);
+            if (!awaitVSOperation(completed)) return false;
 
+            byte[] parameters = completed.getNow();
+            mVSEnableResult = completed.isSuccess()
+                    && parameters != null && parameters.length >= 1 && parameters[0] == 0;
+            publishVSState();
             return mVSEnableResult;
         }
     }
@@ -638,27 +809,45 @@ public class AntService extends Service
             {
                 synchronized(mVSState_LOCK)
                 {
-                    setState(AntHalDefine.ANT_HAL_STATE_ENABLING);
-                    // This is needed so that there is no hole where we have brought up the HCI interface but not sent the enable command yet.
-                    if(HalSettings.HCI_ENABLE) mVSEnableResult = null;
-
-                    if(!bringUpVSBlocking())
+                    long lockedNanos = System.nanoTime();
+                    try
                     {
-                        setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
-                        mVSEnableResult = false;
-                        return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
-                    }
+                        setState(AntHalDefine.ANT_HAL_STATE_ENABLING);
 
-                    // 2. Send an HCI enable command if needed.
-                    if(HalSettings.HCI_ENABLE)
-                    {
-                        if(!sendHCIEnableCommandBlocking())
+                        // Nothing more to do if the interface and the chip were kept in standby.
+                        if(!leaveStandby())
                         {
-                            bringDownVSBlocking();
-                            setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
-                            return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
+                            // This is needed so that there is no hole where we have brought up the HCI interface but not sent the enable command yet.
+                            if(HalSettings.HCI_ENABLE)
+                            {
+                                mVSEnableResult = null;
+                                publishVSState();
+                            }
+
+                            if(!bringUpVSBlocking())
+                            {
+                                setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
+                                mVSEnableResult = false;
+                                publishVSState();
+                                return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
+                            }
+
+                            // 2. Send an HCI enable command if needed.
+                            if(HalSettings.HCI_ENABLE)
+                            {
+                                if(!sendHCIEnableCommandBlocking())
+                                {
+                                    bringDownVSBlocking();
+                                    setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
+                                    return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
+                                }
+                            }
                         }
                     }
+                    finally
+                    {
+                        mVSLockHold.record(System.nanoTime() - lockedNanos);
+                    }
                 }
             }
 
@@ -690,12 +879,159 @@ public class AntService extends Service
         }
     }
 
+    /**
+     * Takes the radio out of warm standby. Must be called with mVSState_LOCK held.
+     *
+     * @return true if the interface, and the chip's enable, were kept and can be used as they
+     * are.
+     */
+    private boolean leaveStandby()
+    {
+        if (HalSettings.HCI_STANDBY_LINGER_MS == 0) return false;
+
+        boolean warm = mVSStandby && mVSInterfaceUp && !mWaitingForVSState
+                && (!HalSettings.HCI_ENABLE || Boolean.TRUE.equals(mVSEnableResult));
+        mVSStandby = false;
+        publishVSState();
+
+        if (warm)
+        {
+            mStandbyHits++;
+        }
+        else
+        {
+            mStandbyMisses++;
+        }
+        return warm;
+    }
+
+    /**
+     * Keeps the vendor specific interface up for the linger period, with the radio disabled as
+     * far as clients know. The chip is reset first, so no channel is left open and transmitting
+     * while nobody is using the radio. Must be called with mVSState_LOCK held.
+     *
+     * @return false if the chip could not be reset, in which case the caller brings the
+     * interface down and clears the standby.
+     */
+    private boolean enterStandbyBlocking()
+    {
+        // Set first, so nothing more is sent and the reset's startup message is not delivered.
+        mVSStandby = true;
+        publishVSState();
+
+        if (!sendResetBlocking())
+        {
+            Log.w(TAG, "Could not reset the chip, not keeping the HCI interface in standby");
+            return false;
+        }
+
+        mPowerExecutor.scheduleIdle(mStandbyExpiry, HalSettings.HCI_STANDBY_LINGER_MS);
+        return true;
+    }
+
+    /**
+     * Sends the chip a reset, which closes every channel. Must be called with mVSState_LOCK held.
+     *
+     * @return true if the controller accepted it.
+     */
+    private boolean sendResetBlocking()
+    {
+        IAntHciBufferFramer framer = mFramer;
+        if (framer == null) return false;
+
+        byte[] message = AntMessage.buildReset();
+        byte[] hcimessage = new byte[framer.getCommandLength(message.length)];
+        framer.packageCommand(message, 0, message.length, ByteBuffer.wrap(hcimessage));
+
+        VSFuture<byte[]> completed = mVSState.sendVendorSpecificCommand(
+                framer.getCommandOpcode(message), hcimessage);
+        return awaitVSOperation(completed) && completed.isSuccess();
+    }
+
+    /**
+     * Brings the vendor specific interface down once a warm standby has lasted its linger period.
+     * Runs on the power executor's thread.
+     */
+    private final Runnable mStandbyExpiry = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (sAntHalServiceDestroy_LOCK)
+            {
+                synchronized (mVSState_LOCK)
+                {
+                    if (!mVSStandby) return;
+
+                    long lockedNanos = System.nanoTime();
+                    mStandbyExpired++;
+                    bringDownVSBlocking();
+                    // Only cleared now so the state stays disabled while the interface goes down.
+                    mVSStandby = false;
+                    publishVSState();
+                    mVSLockHold.record(System.nanoTime() - lockedNanos);
+                }
+            }
+        }
+    };
+
+    /**
+     * Brings the HCI interface up once after boot, so the first enable does not also pay for the
+     * first, slowest bring up. The interface is then kept in standby for the linger period, as
+     * after a disable. Only posted when there is a linger period, there is nothing to gain
+     * otherwise. Runs on the power executor's thread.
+     */
+    private final Runnable mPrewarm = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (sAntHalServiceDestroy_LOCK)
+            {
+                synchronized (mVSState_LOCK)
+                {
+                    // Nothing to warm if the radio has been used already.
+                    if (mVSInterfaceUp || mWaitingForVSState) return;
+
+                    // Keeps the radio disabled as far as clients know while the interface is up.
+                    mVSStandby = true;
+                    publishVSState();
+
+                    long startNanos = System.nanoTime();
+                    boolean ready = bringUpVSBlocking();
+                    recordPhase("prewarmInterface", System.nanoTime() - startNanos);
+
+                    if (ready && HalSettings.HCI_ENABLE)
+                    {
+                        startNanos = System.nanoTime();
+                        ready = sendHCIEnableCommandBlocking();
+                        recordPhase("prewarmEnable", System.nanoTime() - startNanos);
+                    }
+
+                    if (!ready)
+                    {
+                        Log.w(TAG, "Pre-warm could not bring up the HCI interface");
+                    }
+
+                    if (!ready || !enterStandbyBlocking())
+                    {
+                        bringDownVSBlocking();
+                        mVSStandby = false;
+                        publishVSState();
+                    }
+                }
+            }
+        }
+    };
+
     /**
      * Calls disable on the lower level code
+     * @param allowStandby Whether the HCI interface may be kept up for a while, see
+     * {@link HalSettings#HCI_STANDBY_LINGER_MS}.
      * @return {@link AntHalDefine#ANT_HAL_RESULT_SUCCESS} when successful, or
      * {@link AntHalDefine#ANT_HAL_RESULT_FAIL_UNKNOWN} if unsuccessful
      */
-    private int disableBlocking()
+    private int disableBlocking(boolean allowStandby)
     {
         int ret = AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
         synchronized(sAntHalServiceDestroy_LOCK)
@@ -721,9 +1057,20 @@ public class AntService extends Service
                 case HCI:
                     synchronized (mVSState_LOCK)
                     {
+                        long lockedNanos = System.nanoTime();
                         setState(AntHalDefine.ANT_HAL_STATE_DISABLING);
-                        bringDownVSBlocking();
+                        boolean standby = allowStandby && HalSettings.HCI_STANDBY_LINGER_MS > 0
+                                && mVSInterfaceUp && !mWaitingForVSState
+                                && enterStandbyBlocking();
+                        if (!standby)
+                        {
+                            bringDownVSBlocking();
+                            mVSStandby = false;
+                            publishVSState();
+                        }
                         setState(AntHalDefine.ANT_HAL_STATE_DISABLED);
+                        ret = AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+                        mVSLockHold.record(System.nanoTime() - lockedNanos);
                     }
                     break;
             }
@@ -732,7 +1079,7 @@ public class AntService extends Service
     }
 
     /**
-     * Post an enable runnable.
+     * Post an enable to the power executor.
      */
     private int enableBackground()
     {
@@ -740,30 +1087,20 @@ public class AntService extends Service
 
         if (DEBUG) Log.d(TAG, "Enable: enabling the radio");
 
-        // TODO use handler to post runnable rather than creating a new thread.
-        new Thread(new Runnable() {
-            public void run() {
-                enableBlocking();
-            }
-        }).start();
+        mPowerExecutor.request(true);
 
         if(DEBUG) Log.v(TAG, "Enable call end: Successfully called");
         return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
     }
 
     /**
-     * Post a disable runnable.
+     * Post a disable to the power executor.
      */
     private int disableBackground()
     {
         if(DEBUG) Log.v(TAG, "Disable start");
 
-        // TODO use handler to post runnable rather than creating a new thread.
-        new Thread(new Runnable() {
-            public void run() {
-                disableBlocking();
-            }
-        }).start();
+        mPowerExecutor.request(false);
 
         if(DEBUG) Log.v(TAG, "Disable call end: Success");
         return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
@@ -779,17 +1116,7 @@ public class AntService extends Service
             return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
         }
 
-        int result = AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
-
-        switch (HalSettings.TRANSPORT)
-        {
-            case VFS:
-                result = TxMessageVFS(message);
-                break;
-            case HCI:
-                result = TxMessageHCI(message);
-                break;
-        }
+        int result = mTxWriter.transmit(new byte[][] {message});
 
         if (DEBUG) Log.v(TAG, "ANTTxMessage: Result = "+ result);
 
@@ -798,6 +1125,225 @@ public class AntService extends Service
         return result;
     }
 
+    /**
+     * Splits a burst transfer into packets for {@link IAntHal2#ANTTxBurst(int, byte[], int)}.
+     *
+     * @return The messages to send, or null if the request is invalid.
+     */
+    private static byte[][] buildBurst(int channel, byte[] payload, int packetLength)
+    {
+        if (payload == null || payload.length == 0)
+        {
+            Log.e(TAG, "ANTTxBurst invalid payload: payload is empty");
+            return null;
+        }
+        if ((channel & ~AntMessage.CHANNEL_NUMBER_MASK) != 0)
+        {
+            Log.e(TAG, "ANTTxBurst invalid channel: " + channel);
+            return null;
+        }
+        if (!AntMessage.isValidBurstPacketLength(packetLength))
+        {
+            Log.e(TAG, "ANTTxBurst invalid packet length: " + packetLength);
+            return null;
+        }
+
+        return AntMessage.buildBurst(channel, payload, packetLength);
+    }
+
+    private int doANTTxBurst(int channel, byte[] payload, int packetLength)
+    {
+        byte[][] messages = buildBurst(channel, payload, packetLength);
+        if (messages == null) return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+
+        return mTxWriter.transmit(messages);
+    }
+
+    /**
+     * Queues a message for the TX writer thread. The result goes to the callback registered for
+     * the calling user at the time of the call.
+     */
+    private void doANTTxMessageAsync(int requestId, byte[] message)
+    {
+        AntHalClient client = getCallingClient();
+        if (message == null)
+        {
+            Log.e(TAG, "ANTTxMessageAsync invalid message: message is null");
+            reportTxComplete(client, requestId, AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST);
+            return;
+        }
+
+        mTxWriter.submit(requestId, message, client);
+    }
+
+    private void doANTTxBurstAsync(int requestId, int channel, byte[] payload, int packetLength)
+    {
+        AntHalClient client = getCallingClient();
+        byte[][] messages = buildBurst(channel, payload, packetLength);
+        if (messages == null)
+        {
+            reportTxComplete(client, requestId, AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST);
+            return;
+        }
+
+        mTxWriter.submit(requestId, messages, client);
+    }
+
+    /**
+     * Reports the result of an asynchronous send that never reached the TX writer.
+     */
+    private static void reportTxComplete(AntHalClient client, int requestId, int result)
+    {
+        if (client == null) return;
+
+        try
+        {
+            client.txComplete(requestId, result);
+        }
+        catch (RemoteException e)
+        {
+            // Don't do anything as this is a problem in the application
+            if(DEBUG) Log.e(TAG, "ANT HAL Tx complete callback failure in application", e);
+        }
+    }
+
+    private int doSetRxBatching(int maxLatencyMicros, int maxMessages)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null || !client.setRxBatching(maxLatencyMicros, maxMessages))
+        {
+            return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+        }
+        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+    }
+
+    private int doSetRxConflation(boolean enable, boolean dropUnchanged)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null || !client.setRxConflation(enable, dropUnchanged))
+        {
+            return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+        }
+        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+    }
+
+    private int doSetRxTimestamps(boolean enable)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null || !client.setRxTimestamps(enable))
+        {
+            return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+        }
+        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+    }
+
+    private int doSetTxTransferReports(boolean enable)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null || !client.setTxTransferReports(enable))
+        {
+            return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+        }
+        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+    }
+
+    private int doSetRxBurstAssembly(boolean enable)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null || !client.setRxBurstAssembly(enable, HalSettings.RX_BURST_MAX_SIZE))
+        {
+            return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+        }
+        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+    }
+
+    private ParcelFileDescriptor doOpenRxRing(int size)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null || !client.supportsRxRing()) return null;
+
+        int dataSize = SharedRxRing.getDataSize(size);
+        SharedRingMemory memory;
+        try
+        {
+            memory = SharedRingMemory.create(getCacheDir(), SharedRxRing.HEADER_SIZE + dataSize);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not set up shared RX ring", e);
+            return null;
+        }
+
+        if (!client.setRxRing(new SharedRxRing.Writer(memory.buffer, dataSize)))
+        {
+            memory.closeDescriptor();
+            return null;
+        }
+        return memory.descriptor;
+    }
+
+    private ParcelFileDescriptor doOpenTxRing(int size)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null || !client.supportsTxRing()) return null;
+
+        int areaSize = SharedRxRing.getDataSize(size);
+        SharedRingMemory memory;
+        try
+        {
+            memory = SharedRingMemory.create(getCacheDir(),
+                    SharedTxRing.HEADER_SIZE + 2 * areaSize);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not set up shared TX ring", e);
+            return null;
+        }
+
+        mTxWriter.addRing(new SharedTxRing.Server(memory.buffer, areaSize, areaSize), client);
+        return memory.descriptor;
+    }
+
+    private int doSetChannelSubscription(int channelMask)
+    {
+        AntHalClient client = getCallingClient();
+        if (client == null) return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+
+        client.setChannelMask(channelMask);
+        return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+    }
+
+    /**
+     * @return The callback registered last by the process making the current binder call, or
+     * if it has none, the callback registered last by the same user.
+     */
+    @SuppressLint("NewApi")
+    private AntHalClient getCallingClient()
+    {
+        List<AntHalClient> callbacks;
+        if(HAS_MULTI_USER_API)
+        {
+            synchronized (mUserCallback_LOCK)
+            {
+                callbacks = mCallbackMap.get(Binder.getCallingUserHandle());
+            }
+            if (callbacks == null) return null;
+        } else
+        {
+            callbacks = mCallbacks;
+        }
+
+        int pid = Binder.getCallingPid();
+        AntHalClient newest = null;
+        AntHalClient fromCaller = null;
+        for (AntHalClient client : callbacks)
+        {
+            newest = client;
+            if (client.isFromProcess(pid)) fromCaller = client;
+        }
+        return (fromCaller != null) ? fromCaller : newest;
+    }
+
     private int TxMessageVFS(byte[] message)
     {
         JAntStatus status = mJAnt.ANTTxMessage(message);
@@ -830,109 +1376,133 @@ public class AntService extends Service
         return result;
     }
 
-    private int TxMessageHCI(byte[] message)
+    /**
+     * Hands a message to the vendor specific state machine. The result is given to the callback
+     * once the command complete arrives.
+     */
+    private void TxMessageHCI(byte[] message, final TxWriter.SendCallback callback)
     {
-        int result = AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
-        if (mFramer != null)
+        IAntHciBufferFramer framer = mFramer;
+        if (framer == null)
+        {
+            callback.onSent(AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN, false);
+            return;
+        }
+        if (mVSStandby)
         {
-            short opcode = mFramer.getCommandOpcode(message);
-            byte[] hcimessage = mFramer.packageCommand(message);
-            long attemptsLeft = HalSettings.HCI_COMMAND_RETRIES;
+            // The interface is only up for a quick enable, the radio is disabled.
+            callback.onSent(AntHalDefine.ANT_HAL_RESULT_FAIL_NOT_ENABLED, false);
+            return;
+        }
+
+        short opcode = framer.getCommandOpcode(message);
+        byte[] hcimessage = new byte[framer.getCommandLength(message.length)];
+        framer.packageCommand(message, 0, message.length, ByteBuffer.wrap(hcimessage));
 
-            while (attemptsLeft > 0)
+        mVSState.sendVendorSpecificCommand(opcode, hcimessage,
+                mHciCommandWindow.track(new HciCommandWindow.Listener()
+        {
+            @Override
+            public void onComplete(HciCommandStatus status)
             {
-                synchronized(mVSState_LOCK)
+                if (status.isSuccess())
                 {
-                    mCommandCompleteResult = null; // reset
-                    mVSState.sendVendorSpecificCommand(opcode, hcimessage, mCommandCompleteCallback);
-                    while (mCommandCompleteResult == null)
-                    {
-                        try
-                        {
-                            mVSState_LOCK.wait();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            Log.e(TAG, "HCI command transmit interrupted.");
-                            return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
-                        }
-                    }
-
-                    if (mCommandCompleteResult)
-                    {
-                        result = AntHalDefine.ANT_HAL_RESULT_SUCCESS;
-                        attemptsLeft = 0;
-                    }
-                    else
-                    {
-                        SystemClock.sleep(HalSettings.HCI_COMMAND_RETRY_SLEEP_MS);
-                        attemptsLeft--;
-                    }
+                    mHciTxPacer.onSuccess();
                 }
+                else if (status.isRetryable())
+                {
+                    mHciTxPacer.onBusy();
+                }
+
+                if (DEBUG && !status.isSuccess()) Log.w(TAG, "HCI command failed: " + status);
+
+                // Only a busy controller is worth trying again, anything else is final.
+                callback.onSent(status.toHalResult(), status.isRetryable());
             }
-        }
-        return result;
+        }));
     }
 
     @SuppressLint("NewApi")
-    private int doRegisterAntHalCallback(IAntHalCallback callback)
+    private int doRegisterAntHalCallback(final AntHalClient callback)
     {
+        if (callback == null)
+        {
+            Log.e(TAG, "registerAntHalCallback invalid callback: callback is null");
+            return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+        }
+
         synchronized (mUserCallback_LOCK)
         {
+            final CopyOnWriteArrayList<AntHalClient> callbacks;
             if(HAS_MULTI_USER_API)
             {
                 UserHandle user = Binder.getCallingUserHandle();
                 if(DEBUG) Log.i(TAG, "Registering callback: "+ callback + " for user: " + user);
-                mCallbackMap.put(user, callback);
+                callbacks = getUserCallbacks(user);
                 if(user.equals(mCurrentUser))
                 {
-                    mCallback = callback;
+                    mCallbacks = callbacks;
                 }
             } else
             {
                 if(DEBUG) Log.i(TAG, "Registering callback: "+ callback);
-                mCallback = callback;
+                callbacks = mCallbacks;
+            }
+
+            // Registering the same callback again replaces it, any other callback is an
+            // additional subscriber.
+            AntHalClient previous = findClient(callbacks, callback);
+            if (previous != null)
+            {
+                callbacks.remove(previous);
+                previous.release();
             }
+
+            callbacks.add(callback);
+            callback.start(HalSettings.RX_QUEUE_SIZE, HalSettings.RX_QUEUE_OVERFLOW, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    removeClient(callbacks, callback);
+                }
+            });
         }
 
         return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
     }
 
     @SuppressLint("NewApi")
-    private int doUnregisterAntHalCallback(IAntHalCallback callback)
+    private int doUnregisterAntHalCallback(AntHalClient callback)
     {
         int result = AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
 
         if(HAS_MULTI_USER_API)
         {
             UserHandle user = Binder.getCallingUserHandle();
-            if(DEBUG) Log.i(TAG, "Unregistering callback: "+ callback.toString() + " for user: " +
+            if(DEBUG) Log.i(TAG, "Unregistering callback: "+ callback + " for user: " +
                     user);
             synchronized(mUserCallback_LOCK)
             {
-                IAntHalCallback currentCallback = mCallbackMap.get(user);
-                if(callback != null && currentCallback != null &&
-                        callback.asBinder().equals(currentCallback.asBinder()))
+                CopyOnWriteArrayList<AntHalClient> callbacks = mCallbackMap.get(user);
+                if(callbacks != null && removeClient(callbacks, findClient(callbacks, callback)))
                 {
-                    mCallbackMap.remove(user);
                     result = AntHalDefine.ANT_HAL_RESULT_SUCCESS;
                 }
                 // Regardless of state, if the current user is leaving we need to allow others to
                 // take over.
-                if(user.equals(mCurrentUser))
+                if(user.equals(mCurrentUser) && (callbacks == null || callbacks.isEmpty()))
                 {
                     clearCurrentUser();
                 }
             }
         } else
         {
-            if(DEBUG) Log.i(TAG, "Unregistering callback: "+ callback.toString());
+            if(DEBUG) Log.i(TAG, "Unregistering callback: "+ callback);
             synchronized(mUserCallback_LOCK)
             {
-                if(callback != null && mCallback != null &&
-                        callback.asBinder().equals(mCallback.asBinder()))
+                if(removeClient(mCallbacks, findClient(mCallbacks, callback)))
                 {
-                    mCallback = null;
                     result = AntHalDefine.ANT_HAL_RESULT_SUCCESS;
                 }
             }
@@ -940,6 +1510,101 @@ public class AntService extends Service
         return result;
     }
 
+    /**
+     * @return The callbacks of a user, created empty if the user has none yet. Must be called
+     * with {@link #mUserCallback_LOCK} held.
+     */
+    private CopyOnWriteArrayList<AntHalClient> getUserCallbacks(UserHandle user)
+    {
+        CopyOnWriteArrayList<AntHalClient> callbacks = mCallbackMap.get(user);
+        if (callbacks == null)
+        {
+            callbacks = new CopyOnWriteArrayList<AntHalClient>();
+            mCallbackMap.put(user, callbacks);
+        }
+        return callbacks;
+    }
+
+    /**
+     * @return The registered client with the same binder as the given one, or null.
+     */
+    private static AntHalClient findClient(List<AntHalClient> callbacks, AntHalClient callback)
+    {
+        if (callback == null) return null;
+
+        for (AntHalClient client : callbacks)
+        {
+            if (client.asBinder().equals(callback.asBinder())) return client;
+        }
+        return null;
+    }
+
+    /**
+     * Unregisters a client and stops its delivery thread.
+     *
+     * @return true if the client was registered.
+     */
+    private boolean removeClient(List<AntHalClient> callbacks, AntHalClient client)
+    {
+        if (client == null) return false;
+
+        synchronized (mUserCallback_LOCK)
+        {
+            if (!callbacks.remove(client)) return false;
+        }
+        client.release();
+        return true;
+    }
+
+    /**
+     * Drops every registered callback. Must be called with {@link #mUserCallback_LOCK} held.
+     */
+    private void clearCallbacks()
+    {
+        for (CopyOnWriteArrayList<AntHalClient> callbacks : mCallbackMap.values())
+        {
+            for (AntHalClient client : callbacks)
+            {
+                client.release();
+            }
+        }
+        for (AntHalClient client : mCallbacks)
+        {
+            client.release();
+        }
+
+        mCallbackMap.clear();
+        mCallbacks = new CopyOnWriteArrayList<AntHalClient>();
+    }
+
+    /**
+     * Drops the callbacks registered through one interface, once its last client has unbound.
+     * Clients of the other interface are left alone. Must be called with
+     * {@link #mUserCallback_LOCK} held.
+     *
+     * @param action The bind action of the interface.
+     */
+    private void clearCallbacks(String action)
+    {
+        for (CopyOnWriteArrayList<AntHalClient> callbacks : mCallbackMap.values())
+        {
+            clearCallbacks(callbacks, action);
+        }
+        clearCallbacks(mCallbacks, action);
+    }
+
+    private static void clearCallbacks(CopyOnWriteArrayList<AntHalClient> callbacks,
+            String action)
+    {
+        for (AntHalClient client : callbacks)
+        {
+            if (!client.getInterfaceName().equals(action)) continue;
+
+            callbacks.remove(client);
+            client.release();
+        }
+    }
+
     private int doGetServiceLibraryVersionCode()
     {
         return Version.ANT_HAL_LIBRARY_VERSION_CODE;
@@ -979,26 +1644,36 @@ public class AntService extends Service
         return ret;
     }
 
-    private void receiveMessage(byte[] message)
+    /**
+     * @param receivedNanos When the message was received at the transport, from
+     * {@link JAntUtils#elapsedRealtimeNanos()}.
+     */
+    private void receiveMessage(ByteBuffer message, long receivedNanos)
     {
+        mRxServiceLatency.record(JAntUtils.elapsedRealtimeNanos() - receivedNanos);
+
         // Use caching instead of synchronization so that we do not have to hold a lock during a callback.
         // It is safe to not hold the lock because we are not doing any write accesses.
-        IAntHalCallback callback = mCallback;
-        if(null != callback)
+        CopyOnWriteArrayList<AntHalClient> callbacks = mCallbacks;
+
+        // Decoded and copied once, every subscriber is given the same array. Transfers are
+        // tracked whether or not anyone is listening, the transmitting client may have gone.
+        int channel = AntMessage.getRxChannel(message);
+        byte[] array = AntMessage.toArray(message);
+        mTransferTracker.onReceived(array, receivedNanos);
+
+        if(callbacks.isEmpty())
         {
-            try
-            {
-                callback.antHalRxMessage(message);
-            }
-            catch (RemoteException e)
-            {
-                // Don't do anything as this is a problem in the application
-                if(DEBUG) Log.e(TAG, "ANT HAL Rx Message callback failure in application", e);
-            }
+            Log.w(TAG, "ANT message received after service has been destroyed");
+            return;
         }
-        else
+
+        for (AntHalClient callback : callbacks)
         {
-            Log.w(TAG, "ANT message received after service has been destroyed");
+            if (callback.isSubscribed(channel))
+            {
+                callback.receive(array, receivedNanos);
+            }
         }
     }
 
@@ -1024,12 +1699,12 @@ public class AntService extends Service
         // Call these in onServiceConnected and when unbinding
         public int registerAntHalCallback(IAntHalCallback callback)
         {
-            return doRegisterAntHalCallback(callback);
+            return doRegisterAntHalCallback(AntHalClient.wrap(callback));
         }
 
         public int unregisterAntHalCallback(IAntHalCallback callback)
         {
-            return doUnregisterAntHalCallback(callback);
+            return doUnregisterAntHalCallback(AntHalClient.wrap(callback));
         }
 
         public int getServiceLibraryVersionCode()
@@ -1043,6 +1718,112 @@ public class AntService extends Service
         }
     }; // new IAntHal.Stub()
 
+    // ---------------------------------------------------------------------------------------- IAntHal2
+
+    private final IAntHal2.Stub mHal2Binder = new IAntHal2.Stub()
+    {
+        public int setAntState(int state)
+        {
+            return doSetAntState(state);
+        }
+
+        public int getAntState()
+        {
+            return doGetAntState(false);
+        }
+
+        public int ANTTxMessage(byte[] message)
+        {
+            return doANTTxMessage(message);
+        }
+
+        public int registerAntHalCallback(IAntHal2Callback callback)
+        {
+            return doRegisterAntHalCallback(AntHalClient.wrap(callback));
+        }
+
+        public int unregisterAntHalCallback(IAntHal2Callback callback)
+        {
+            return doUnregisterAntHalCallback(AntHalClient.wrap(callback));
+        }
+
+        public int getServiceLibraryVersionCode()
+        {
+            return doGetServiceLibraryVersionCode();
+        }
+
+        public String getServiceLibraryVersionName()
+        {
+            return doGetServiceLibraryVersionName();
+        }
+
+        public void ANTTxMessageAsync(int requestId, byte[] message)
+        {
+            doANTTxMessageAsync(requestId, message);
+        }
+
+        public int ANTTxBurst(int channel, byte[] payload, int packetLength)
+        {
+            return doANTTxBurst(channel, payload, packetLength);
+        }
+
+        public void ANTTxBurstAsync(int requestId, int channel, byte[] payload, int packetLength)
+        {
+            doANTTxBurstAsync(requestId, channel, payload, packetLength);
+        }
+
+        public int setRxBatching(int maxLatencyMicros, int maxMessages)
+        {
+            return doSetRxBatching(maxLatencyMicros, maxMessages);
+        }
+
+        public int setChannelSubscription(int channelMask)
+        {
+            return doSetChannelSubscription(channelMask);
+        }
+
+        public int setRxConflation(boolean enable, boolean dropUnchanged)
+        {
+            return doSetRxConflation(enable, dropUnchanged);
+        }
+
+        public int setRxBurstAssembly(boolean enable)
+        {
+            return doSetRxBurstAssembly(enable);
+        }
+
+        public ParcelFileDescriptor openRxRing(int size)
+        {
+            return doOpenRxRing(size);
+        }
+
+        public ParcelFileDescriptor openTxRing(int size)
+        {
+            return doOpenTxRing(size);
+        }
+
+        public void txRingReady()
+        {
+            mTxWriter.wake();
+        }
+
+        public void rxRingRead()
+        {
+            AntHalClient client = getCallingClient();
+            if (client != null) client.onRxRingRead();
+        }
+
+        public int setRxTimestamps(boolean enable)
+        {
+            return doSetRxTimestamps(enable);
+        }
+
+        public int setTxTransferReports(boolean enable)
+        {
+            return doSetTxTransferReports(enable);
+        }
+    }; // new IAntHal2.Stub()
+
     // -------------------------------------------------------------------------------------- Service
 
     @Override
@@ -1052,7 +1833,14 @@ public class AntService extends Service
 
         super.onCreate();
 
-        mVSState = VendorSpecificStateMachine.make(this, mVSStateCallbacks);
+        recordPhase("settings", HalSettings.LOAD_NANOS);
+
+        long startNanos = System.nanoTime();
+        mVSState = VendorSpecificStateMachine.make(this, mVSStateCallbacks,
+                mHciCommandWindow.getSize(), HalSettings.HCI_RX_RING_SIZE);
+        recordPhase("stateMachine", System.nanoTime() - startNanos);
+
+        startNanos = System.nanoTime();
 
         switch(HalSettings.TRANSPORT)
         {
@@ -1064,7 +1852,7 @@ public class AntService extends Service
                 }
                 // create a single new JAnt HCI Interface instance
                 mJAnt = new JAntJava();
-                JAntStatus createResult = mJAnt.create(mJAntCallback);
+                JAntStatus createResult = mJAnt.create(mJAntCallback, HalSettings.VFS_RX_RING_SIZE);
 
                 if (createResult == JAntStatus.SUCCESS)
                 {
@@ -1078,6 +1866,7 @@ public class AntService extends Service
 
                     if (DEBUG) Log.e(TAG, "JAntJava create failed: " + createResult);
                 }
+                recordPhase("jant", System.nanoTime() - startNanos);
                 break;
             case HCI:
                 try
@@ -1085,7 +1874,7 @@ public class AntService extends Service
                     Class<?> clazz = Class.forName(HalSettings.HCI_FORMATCLASS);
                     // Get's the default no-arg constructor.
                     Constructor<?> constructor = clazz.getConstructor();
-                    mFramer = (IAntHciFramer) constructor.newInstance();
+                    mFramer = AntHciFramerBridge.adapt((IAntHciFramer) constructor.newInstance());
                 } catch (Exception e) {
                     // Don't want to crash no matter what. We are running in the system server !!
                     Log.e(TAG, "Could not load HCI framer class", e);
@@ -1098,6 +1887,7 @@ public class AntService extends Service
                 {
                     mInitialized = false;
                 }
+                recordPhase("framer", System.nanoTime() - startNanos);
         }
 
         IntentFilter filter = new IntentFilter();
@@ -1113,6 +1903,8 @@ public class AntService extends Service
         }
         registerReceiver(mReceiver, filter);
 
+        mTxWriter.start();
+        mPowerExecutor.start();
     }
 
     @Override
@@ -1122,15 +1914,21 @@ public class AntService extends Service
 
         try
         {
+            mTxWriter.stop();
+            // Anything still waiting is dropped, a running transition finishes first.
+            mPowerExecutor.stop();
+
             synchronized(sAntHalServiceDestroy_LOCK)
             {
-                int result = disableBlocking();
+                int result = disableBlocking(false);
                 if (DEBUG)
                 {
                     Log.d(TAG, "onDestroy: disable result is: "
                         + AntHalDefine.getAntHalResultString(result));
                 }
 
+                mVSState.destroy();
+
                 if (null != mJAnt)
                 {
                     mJAnt.destroy();
@@ -1145,8 +1943,7 @@ public class AntService extends Service
 
             synchronized(mUserCallback_LOCK)
             {
-                mCallbackMap.clear();
-                mCallback = null;
+                clearCallbacks();
             }
         }
         finally
@@ -1156,6 +1953,50 @@ public class AntService extends Service
         unregisterReceiver(mReceiver);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args)
+    {
+        pw.println("ANT HAL Service: transport=" + HalSettings.TRANSPORT
+                + " initialized=" + mInitialized);
+        synchronized (mStartupPhases)
+        {
+            StringBuilder phases = new StringBuilder("  Startup:");
+            for (Map.Entry<String, Long> phase : mStartupPhases.entrySet())
+            {
+                phases.append(' ').append(phase.getKey()).append('=')
+                        .append(phase.getValue() / 1000).append("us");
+            }
+            pw.println(phases);
+        }
+        mPowerExecutor.dump(pw);
+        mTxWriter.dump(pw);
+        mTransferTracker.dump(pw);
+        mRxServiceLatency.dump(pw, "  ");
+        mStateQueryTime.dump(pw, "  ");
+        if (HalSettings.TRANSPORT == Transport.HCI)
+        {
+            mHciCommandWindow.dump(pw);
+            mHciTxPacer.dump(pw);
+            mVSState.dump(pw);
+            synchronized (mVSState_LOCK)
+            {
+                pw.println("  HCI standby: lingerMs=" + HalSettings.HCI_STANDBY_LINGER_MS
+                        + " active=" + mVSStandby + " hits=" + mStandbyHits
+                        + " misses=" + mStandbyMisses + " expired=" + mStandbyExpired);
+            }
+            mVSLockHold.dump(pw, "  ");
+        }
+        else if (mJAnt != null)
+        {
+            mJAnt.dump(pw);
+        }
+
+        for (AntHalClient callback : mCallbacks)
+        {
+            callback.dump(pw);
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent)
     {
@@ -1171,6 +2012,12 @@ public class AntService extends Service
 
                 binder = mHalBinder;
             }
+            else if(intent.getAction().equals(IAntHal2.class.getName()))
+            {
+                if (DEBUG) Log.i(TAG, "Bind: IAntHal2");
+
+                binder = mHal2Binder;
+            }
         }
 
         // As someone has started using us, make sure we run "forever" like we
@@ -1185,10 +2032,10 @@ public class AntService extends Service
     {
         if (DEBUG) Log.d(TAG, "onUnbind() entered");
 
+        // Only the last client of this interface has gone, the other may still be in use.
         synchronized(mUserCallback_LOCK)
         {
-            mCallback = null;
-            mCallbackMap.clear();
+            clearCallbacks(intent.getAction());
         }
 
         return super.onUnbind(intent);
@@ -1204,6 +2051,14 @@ public class AntService extends Service
             if (DEBUG) Log.e(TAG, "not initialized, stopping self");
             stopSelf();
         }
+        else if (intent != null && intent.getBooleanExtra(EXTRA_BOOT, false)
+                && HalSettings.HCI_BOOT_PREWARM && HalSettings.HCI_STANDBY_LINGER_MS > 0
+                && !mPrewarmPosted)
+        {
+            // Off the main thread, and out of the way of any enable asked for meanwhile.
+            mPrewarmPosted = true;
+            mPowerExecutor.post(mPrewarm);
+        }
         return START_NOT_STICKY;
     }
 
@@ -1211,9 +2066,15 @@ public class AntService extends Service
 
     private JAntJava.ICallback mJAntCallback = new JAntJava.ICallback()
     {
-        public synchronized void ANTRxMessage( byte[] message)
+        public synchronized void ANTRxMessage( byte[] message, long receivedNanos)
+        {
+            receiveMessage(ByteBuffer.wrap(message), receivedNanos);
+        }
+
+        public void ANTRxMessage(ByteBuffer message, long receivedNanos)
         {
-            receiveMessage(message);
+            // Already on a thread of its own, and needs no lock as receiveMessage() only reads.
+            receiveMessage(message, receivedNanos);
         }
 
         public synchronized void ANTStateChange(int NewState)
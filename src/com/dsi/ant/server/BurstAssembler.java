@@ -0,0 +1,256 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Puts received burst transfers back together, one per ANT channel, so a client can be given a
+ * whole transfer in one call instead of packet by packet.
+ *
+ * A transfer is collected into a buffer from a small pool, which goes back to the pool once the
+ * transfer has been delivered and {@link Transfer#recycle()} is called. A transfer that grows
+ * past the maximum size is handed out in parts. A transfer that is broken off, by a transfer
+ * failed event, a packet out of sequence or the next transfer starting, is handed out with
+ * whatever had arrived and marked as failed. A packet that continues no transfer, for example
+ * after the first packet was lost, is left to be delivered on its own.
+ *
+ * Not thread safe, the owner must only use it under its own lock.
+ */
+final class BurstAssembler
+{
+    private static final int CHANNEL_COUNT = AntMessage.CHANNEL_NUMBER_MASK + 1;
+
+    /** Message code of an RF event in a channel response/event message. */
+    private static final byte EVENT_MESSAGE_CODE = 0x01;
+    private static final byte EVENT_TRANSFER_RX_FAILED = 0x04;
+    private static final byte EVENT_CHANNEL_CLOSED = 0x07;
+
+    private static final int MIN_BUFFER_SIZE = 512;
+    private static final int POOL_SIZE = 4;
+
+    /** The sequence number expected next on a channel with no transfer in progress. */
+    private static final int IDLE = -1;
+
+    /**
+     * A finished transfer, or part of one.
+     */
+    final class Transfer
+    {
+        final int channel;
+        final byte[] data;
+        final int length;
+        /** One of the AntHalDefine.ANT_HAL_RX_BURST_X values. */
+        final int status;
+
+        private Transfer(int channel, byte[] data, int length, int status)
+        {
+            this.channel = channel;
+            this.data = data;
+            this.length = length;
+            this.status = status;
+        }
+
+        /**
+         * Gives the buffer back to the pool once the transfer has been delivered.
+         */
+        void recycle()
+        {
+            if (mPool.size() < POOL_SIZE && data.length <= mMaxSize)
+            {
+                mPool.add(data);
+            }
+        }
+    }
+
+    private final int mMaxSize;
+    private final LinkedList<byte[]> mPool = new LinkedList<byte[]>();
+
+    private final byte[][] mBuffers = new byte[CHANNEL_COUNT][];
+    private final int[] mLengths = new int[CHANNEL_COUNT];
+    private final int[] mNextSequence = new int[CHANNEL_COUNT];
+
+    private long mComplete = 0;
+    private long mPartial = 0;
+    private long mFailed = 0;
+    private long mOutOfSequence = 0;
+    private long mStray = 0;
+    private long mPackets = 0;
+
+    /**
+     * @param maxSize The largest transfer handed out in one piece, in bytes.
+     */
+    BurstAssembler(int maxSize)
+    {
+        mMaxSize = Math.max(MIN_BUFFER_SIZE, maxSize);
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+        {
+            mNextSequence[i] = IDLE;
+        }
+    }
+
+    /**
+     * Looks at a received message, taking it if it is a burst packet.
+     *
+     * @param message A complete received message.
+     * @param finished Where to put any transfers finished by the message, in order.
+     * @return true if the message was a burst packet taken into a transfer, and must not also
+     * be delivered on its own.
+     */
+    boolean add(byte[] message, List<Transfer> finished)
+    {
+        if (message.length <= AntMessage.OFFSET_DATA) return false;
+
+        byte id = message[AntMessage.OFFSET_ID];
+        if (id == AntMessage.MESG_BURST_DATA_ID || id == AntMessage.MESG_ADV_BURST_DATA_ID)
+        {
+            return addPacket(message, id, finished);
+        }
+
+        if (id == AntMessage.MESG_RESPONSE_EVENT_ID && message.length > AntMessage.OFFSET_DATA + 2
+                && message[AntMessage.OFFSET_DATA + 1] == EVENT_MESSAGE_CODE)
+        {
+            byte event = message[AntMessage.OFFSET_DATA + 2];
+            if (event == EVENT_TRANSFER_RX_FAILED || event == EVENT_CHANNEL_CLOSED)
+            {
+                int channel = message[AntMessage.OFFSET_DATA] & AntMessage.CHANNEL_NUMBER_MASK;
+                fail(channel, finished);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the packet continues no transfer.
+     */
+    private boolean addPacket(byte[] message, byte id, List<Transfer> finished)
+    {
+        mPackets++;
+
+        int channelByte = message[AntMessage.OFFSET_DATA] & 0xFF;
+        int channel = channelByte & AntMessage.CHANNEL_NUMBER_MASK;
+        int sequence = (channelByte & AntMessage.BURST_SEQUENCE_MASK)
+                >> AntMessage.BURST_SEQUENCE_SHIFT;
+
+        if (sequence == 0)
+        {
+            fail(channel, finished);
+            mBuffers[channel] = takeBuffer();
+            mLengths[channel] = 0;
+        }
+        else if (mNextSequence[channel] == IDLE)
+        {
+            mStray++;
+            return false;
+        }
+        else if (sequence != mNextSequence[channel])
+        {
+            mOutOfSequence++;
+            fail(channel, finished);
+            return true;
+        }
+        mNextSequence[channel] = (sequence == 3) ? 1 : sequence + 1;
+
+        // Standard burst packets may be followed by extended data, advanced ones carry their size.
+        int offset = AntMessage.OFFSET_DATA + 1;
+        int payloadLength = (id == AntMessage.MESG_BURST_DATA_ID) ?
+                AntMessage.BURST_PACKET_LENGTH : (message[AntMessage.OFFSET_SIZE] & 0xFF) - 1;
+        payloadLength = Math.max(0, Math.min(payloadLength, message.length - offset));
+        append(channel, message, offset, payloadLength);
+
+        if ((channelByte & AntMessage.BURST_LAST_PACKET) != 0)
+        {
+            finish(channel, AntHalDefine.ANT_HAL_RX_BURST_COMPLETE, finished);
+        }
+        else if (mLengths[channel] >= mMaxSize)
+        {
+            // Hand out what there is so far and keep going in a fresh buffer.
+            int next = mNextSequence[channel];
+            finish(channel, AntHalDefine.ANT_HAL_RX_BURST_PARTIAL, finished);
+            mBuffers[channel] = takeBuffer();
+            mLengths[channel] = 0;
+            mNextSequence[channel] = next;
+        }
+        return true;
+    }
+
+    private void append(int channel, byte[] source, int offset, int length)
+    {
+        byte[] buffer = mBuffers[channel];
+        int needed = mLengths[channel] + length;
+        if (needed > buffer.length)
+        {
+            byte[] grown = new byte[Math.max(needed, buffer.length * 2)];
+            System.arraycopy(buffer, 0, grown, 0, mLengths[channel]);
+            buffer = grown;
+            mBuffers[channel] = grown;
+        }
+        System.arraycopy(source, offset, buffer, mLengths[channel], length);
+        mLengths[channel] = needed;
+    }
+
+    /**
+     * Hands out every transfer in progress as failed.
+     */
+    void flush(List<Transfer> finished)
+    {
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+        {
+            fail(i, finished);
+        }
+    }
+
+    private void fail(int channel, List<Transfer> finished)
+    {
+        if (mNextSequence[channel] == IDLE) return;
+
+        finish(channel, AntHalDefine.ANT_HAL_RX_BURST_FAILED, finished);
+    }
+
+    private void finish(int channel, int status, List<Transfer> finished)
+    {
+        switch (status)
+        {
+            case AntHalDefine.ANT_HAL_RX_BURST_COMPLETE: mComplete++; break;
+            case AntHalDefine.ANT_HAL_RX_BURST_PARTIAL: mPartial++; break;
+            default: mFailed++; break;
+        }
+
+        finished.add(new Transfer(channel, mBuffers[channel], mLengths[channel], status));
+        mBuffers[channel] = null;
+        mLengths[channel] = 0;
+        mNextSequence[channel] = IDLE;
+    }
+
+    private byte[] takeBuffer()
+    {
+        byte[] buffer = mPool.poll();
+        return (buffer != null) ? buffer : new byte[MIN_BUFFER_SIZE];
+    }
+
+    void dump(PrintWriter pw)
+    {
+        pw.println("    RX burst assembly: maxSize=" + mMaxSize + " packets=" + mPackets
+                + " complete=" + mComplete + " partial=" + mPartial + " failed=" + mFailed
+                + " outOfSequence=" + mOutOfSequence + " stray=" + mStray
+                + " pooled=" + mPool.size());
+    }
+}
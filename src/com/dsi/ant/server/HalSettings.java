@@ -15,6 +15,22 @@ public class HalSettings
         HCI
     }
 
+    /**
+     * What a client's RX queue does with a new message once it is full.
+     */
+    public enum RxOverflowPolicy
+    {
+        /** Drop the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Drop the new message. */
+        DROP_NEWEST,
+        /**
+         * Replace the queued message of the same type for the same channel, so each channel
+         * keeps only its latest value. Drops the new message if there is none.
+         */
+        LATEST_PER_CHANNEL
+    }
+
     public static final String PROPS_FILE_LOCATION = "/etc/ant-wireless.conf";
     public static final String TAG = HalSettings.class.getSimpleName();
 
@@ -24,12 +40,29 @@ public class HalSettings
 
     public static final Transport TRANSPORT;
 
+    public static final int TX_QUEUE_SIZE;
+    public static final int TX_BACKLOG_MAX_REQUESTS;
+    public static final int TX_BACKLOG_MAX_DELAY_MS;
+    public static final int RX_QUEUE_SIZE;
+    public static final RxOverflowPolicy RX_QUEUE_OVERFLOW;
+    public static final int RX_BURST_MAX_SIZE;
+    public static final int VFS_RX_RING_SIZE;
+
     public static final String HCI_FORMATCLASS;
     public static final short HCI_OPCODE;
     public static final byte[] HCI_FILTER_MASK;
     public static final byte[] HCI_FILTER_VALUE;
     public static final int HCI_COMMAND_RETRIES;
     public static final int HCI_COMMAND_RETRY_SLEEP_MS;
+    public static final int HCI_COMMAND_MIN_RETRY_SLEEP_US;
+    public static final int HCI_COMMAND_WINDOW;
+    public static final byte[] HCI_RETRY_STATUS;
+    public static final int HCI_RX_RING_SIZE;
+    public static final int HCI_STANDBY_LINGER_MS;
+    public static final boolean HCI_BOOT_PREWARM;
+
+    /** How long reading and parsing the configuration took. */
+    public static final long LOAD_NANOS;
 
     private static short parseShort(String src, short defaultValue)
     {
@@ -144,6 +177,7 @@ public class HalSettings
 
     static
     {
+        long startNanos = System.nanoTime();
         Properties props = new Properties();
         try
         {
@@ -173,6 +207,27 @@ public class HalSettings
         prop = props.getProperty("transport");
         TRANSPORT = parseEnum(prop, Transport.VFS, Transport.class);
 
+        prop = props.getProperty("tx.queue.size");
+        TX_QUEUE_SIZE = Math.max(1, parseInt(prop, 256));
+
+        prop = props.getProperty("tx.backlog.max_requests");
+        TX_BACKLOG_MAX_REQUESTS = parseInt(prop, 128);
+
+        prop = props.getProperty("tx.backlog.max_delay_ms");
+        TX_BACKLOG_MAX_DELAY_MS = parseInt(prop, 1000);
+
+        prop = props.getProperty("rx.queue.size");
+        RX_QUEUE_SIZE = Math.max(1, parseInt(prop, 256));
+
+        prop = props.getProperty("rx.queue.overflow");
+        RX_QUEUE_OVERFLOW = parseEnum(prop, RxOverflowPolicy.DROP_OLDEST, RxOverflowPolicy.class);
+
+        prop = props.getProperty("rx.burst.max_size");
+        RX_BURST_MAX_SIZE = parseInt(prop, 65536);
+
+        prop = props.getProperty("vfs.rx.ring_size");
+        VFS_RX_RING_SIZE = Math.max(0, parseInt(prop, 256));
+
         if (TRANSPORT == Transport.HCI)
         {
             prop = props.getProperty("hci.formatclass");
@@ -197,6 +252,24 @@ public class HalSettings
 
             prop = props.getProperty("hci.command.retry_sleep_ms");
             HCI_COMMAND_RETRY_SLEEP_MS = parseInt(prop, 100);
+
+            prop = props.getProperty("hci.command.min_retry_sleep_us");
+            HCI_COMMAND_MIN_RETRY_SLEEP_US = parseInt(prop, 500);
+
+            prop = props.getProperty("hci.command.window");
+            HCI_COMMAND_WINDOW = Math.max(1, parseInt(prop, 1));
+
+            prop = props.getProperty("hci.command.retry_status");
+            HCI_RETRY_STATUS = parseByteArray(prop);
+
+            prop = props.getProperty("hci.rx.ring_size");
+            HCI_RX_RING_SIZE = Math.max(1, parseInt(prop, 256));
+
+            prop = props.getProperty("hci.standby.linger_ms");
+            HCI_STANDBY_LINGER_MS = Math.max(0, parseInt(prop, 0));
+
+            prop = props.getProperty("hci.boot.prewarm");
+            HCI_BOOT_PREWARM = Boolean.parseBoolean(prop);
         }
         else
         {
@@ -206,6 +279,14 @@ public class HalSettings
             HCI_FILTER_VALUE = null;
             HCI_COMMAND_RETRIES = 0;
             HCI_COMMAND_RETRY_SLEEP_MS = 0;
+            HCI_COMMAND_MIN_RETRY_SLEEP_US = 0;
+            HCI_COMMAND_WINDOW = 1;
+            HCI_RETRY_STATUS = null;
+            HCI_RX_RING_SIZE = 1;
+            HCI_STANDBY_LINGER_MS = 0;
+            HCI_BOOT_PREWARM = false;
         }
+
+        LOAD_NANOS = System.nanoTime() - startNanos;
     }
 }
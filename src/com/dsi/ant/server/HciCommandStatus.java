@@ -0,0 +1,172 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import com.dsi.ant.server.VendorSpecificStateMachine.CommandCompleteCallback;
+
+/**
+ * The outcome of sending one HCI command, sorted into what should be done about it.
+ */
+final class HciCommandStatus
+{
+    enum Category
+    {
+        /** The controller accepted the command. */
+        SUCCESS,
+        /** The controller could not take the command right now (usually its buffer is full). */
+        RETRY,
+        /** The controller rejected the command, sending it again will not help. */
+        ERROR,
+        /** The controller did not answer the command. */
+        TIMEOUT,
+        /** The vendor specific interface is not up. */
+        TRANSPORT_DOWN
+    }
+
+    // HCI error codes, see the Bluetooth Core Specification Vol 2 Part D.
+    static final int STATUS_SUCCESS = 0x00;
+    static final int STATUS_UNKNOWN_COMMAND = 0x01;
+    static final int STATUS_COMMAND_DISALLOWED = 0x0C;
+    static final int STATUS_UNSUPPORTED_FEATURE = 0x11;
+    static final int STATUS_INVALID_PARAMETERS = 0x12;
+
+    /** Used as the status when there was no command complete. */
+    static final int STATUS_NONE = -1;
+
+    static final HciCommandStatus SUCCESS = new HciCommandStatus(Category.SUCCESS, STATUS_SUCCESS);
+
+    final Category category;
+    final int status;
+
+    private HciCommandStatus(Category category, int status)
+    {
+        this.category = category;
+        this.status = status;
+    }
+
+    /**
+     * Sorts a command complete by its status byte. Statuses listed in
+     * {@link HalSettings#HCI_RETRY_STATUS} are retried. If that setting is not given, every
+     * failure except the ones that show the command itself is bad or not allowed is retried, as
+     * chips report a full buffer with vendor specific statuses too.
+     */
+    static HciCommandStatus fromCommandComplete(byte[] parameters)
+    {
+        if (parameters == null || parameters.length < 1)
+        {
+            return new HciCommandStatus(Category.ERROR, STATUS_NONE);
+        }
+
+        int status = parameters[0] & 0xFF;
+        if (status == STATUS_SUCCESS)
+        {
+            return SUCCESS;
+        }
+
+        boolean retry;
+        if (HalSettings.HCI_RETRY_STATUS != null)
+        {
+            retry = false;
+            for (byte retryStatus : HalSettings.HCI_RETRY_STATUS)
+            {
+                if ((retryStatus & 0xFF) == status)
+                {
+                    retry = true;
+                    break;
+                }
+            }
+        }
+        else
+        {
+            retry = status != STATUS_UNKNOWN_COMMAND
+                    && status != STATUS_COMMAND_DISALLOWED
+                    && status != STATUS_UNSUPPORTED_FEATURE
+                    && status != STATUS_INVALID_PARAMETERS;
+        }
+
+        return new HciCommandStatus(retry ? Category.RETRY : Category.ERROR, status);
+    }
+
+    /**
+     * Sorts a command that never got a command complete.
+     *
+     * @param reason A {@link CommandCompleteCallback} FAILURE_X value.
+     */
+    static HciCommandStatus fromFailure(int reason)
+    {
+        switch (reason)
+        {
+            case CommandCompleteCallback.FAILURE_TOO_MANY_COMMANDS:
+                return new HciCommandStatus(Category.RETRY, STATUS_NONE);
+            case CommandCompleteCallback.FAILURE_TIMEOUT:
+                return new HciCommandStatus(Category.TIMEOUT, STATUS_NONE);
+            case CommandCompleteCallback.FAILURE_INTERFACE_NOT_READY:
+            case CommandCompleteCallback.FAILURE_INTERFACE_DOWN:
+            default:
+                return new HciCommandStatus(Category.TRANSPORT_DOWN, STATUS_NONE);
+        }
+    }
+
+    boolean isSuccess()
+    {
+        return category == Category.SUCCESS;
+    }
+
+    boolean isRetryable()
+    {
+        return category == Category.RETRY;
+    }
+
+    /**
+     * @return The {@link AntHalDefine} result to give the client if this is the final outcome.
+     */
+    int toHalResult()
+    {
+        switch (category)
+        {
+            case SUCCESS:
+                return AntHalDefine.ANT_HAL_RESULT_SUCCESS;
+            case RETRY:
+                // Ran out of retries while the controller was still busy.
+                return AntHalDefine.ANT_HAL_RESULT_FAIL_RESOURCE_IN_USE;
+            case TRANSPORT_DOWN:
+                return AntHalDefine.ANT_HAL_RESULT_FAIL_NOT_ENABLED;
+            case ERROR:
+                if (status == STATUS_UNKNOWN_COMMAND || status == STATUS_UNSUPPORTED_FEATURE)
+                {
+                    return AntHalDefine.ANT_HAL_RESULT_FAIL_NOT_SUPPORTED;
+                }
+                if (status == STATUS_INVALID_PARAMETERS)
+                {
+                    return AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST;
+                }
+                return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
+            case TIMEOUT:
+            default:
+                return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return (status == STATUS_NONE) ?
+                category.toString() : category + String.format(" (0x%02X)", status);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.io.PrintWriter;
+
+import com.dsi.ant.server.VendorSpecificStateMachine.CommandCompleteCallback;
+
+/**
+ * Tracks the vendor specific commands outstanding with the controller, and delivers the command
+ * complete for each of them separately.
+ *
+ * The {@link TxWriter} is the only sender and keeps no more than {@link #getSize()} commands
+ * outstanding. Each command is given a tracker from {@link #track(Listener)} when it is handed to
+ * the {@link VendorSpecificStateMachine}, which reports the command complete (or the failure in
+ * its place) to the listener.
+ */
+final class HciCommandWindow
+{
+    interface Listener
+    {
+        /**
+         * Called once per command, on whichever thread learnt of the outcome.
+         */
+        void onComplete(HciCommandStatus status);
+    }
+
+    private final int mSize;
+    private final Object mWindow_LOCK = new Object();
+
+    private int mInFlight = 0;
+
+    private long mSent = 0;
+    private final long[] mOutcomes = new long[HciCommandStatus.Category.values().length];
+    private int mMaxInFlight = 0;
+
+    HciCommandWindow(int size)
+    {
+        mSize = Math.max(1, size);
+    }
+
+    /**
+     * @return The completion tracker to pass to
+     * {@link VendorSpecificStateMachine#sendVendorSpecificCommand(short, byte[], CommandCompleteCallback)}.
+     */
+    Command track(Listener listener)
+    {
+        synchronized (mWindow_LOCK)
+        {
+            mInFlight++;
+            mSent++;
+            if (mInFlight > mMaxInFlight) mMaxInFlight = mInFlight;
+        }
+        return new Command(listener);
+    }
+
+    private void release(HciCommandStatus status)
+    {
+        synchronized (mWindow_LOCK)
+        {
+            mInFlight--;
+            mOutcomes[status.category.ordinal()]++;
+        }
+    }
+
+    int getSize()
+    {
+        return mSize;
+    }
+
+    void dump(PrintWriter pw)
+    {
+        synchronized (mWindow_LOCK)
+        {
+            pw.println("  HCI command window: size=" + mSize + " inFlight=" + mInFlight
+                    + " maxInFlight=" + mMaxInFlight);
+            StringBuilder outcomes = new StringBuilder("    sent=" + mSent);
+            for (HciCommandStatus.Category category : HciCommandStatus.Category.values())
+            {
+                outcomes.append(' ').append(category.toString().toLowerCase())
+                        .append('=').append(mOutcomes[category.ordinal()]);
+            }
+            pw.println(outcomes);
+        }
+    }
+
+    /**
+     * The completion of a single outstanding command.
+     */
+    final class Command implements CommandCompleteCallback
+    {
+        private final Listener mListener;
+        private boolean mDone = false;
+
+        private Command(Listener listener)
+        {
+            mListener = listener;
+        }
+
+        @Override
+        public void onCommandComplete(byte[] parameters)
+        {
+            complete(HciCommandStatus.fromCommandComplete(parameters));
+        }
+
+        @Override
+        public void onCommandFailed(int reason)
+        {
+            complete(HciCommandStatus.fromFailure(reason));
+        }
+
+        private void complete(HciCommandStatus status)
+        {
+            synchronized (this)
+            {
+                if (mDone) return;
+                mDone = true;
+            }
+            release(status);
+            mListener.onComplete(status);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import android.util.Log;
+
+import com.dsi.ant.server.VendorSpecificStateMachine.BTVSCallbacks;
+import com.dsi.ant.server.VendorSpecificStateMachine.ReceivedEvent;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers received vendor specific events on a thread of its own, without going through the
+ * {@link VendorSpecificStateMachine} handler. Received events are therefore never held up behind
+ * commands and command completes waiting in the state machine's queue.
+ *
+ * The dispatcher is only active for one bluetooth interface instance at a time, while that
+ * interface is ready. Events may be offered from any thread, BluetoothVS does not promise to
+ * deliver its callbacks on a single one. The dispatch thread runs until {@link #quit()}.
+ */
+final class HciRxDispatcher
+{
+    private static final String TAG = "AntHalRxDispatcher";
+    private static final boolean DEBUG = false;
+
+    static final int NO_INSTANCE = -1;
+
+    private final BTVSCallbacks mCallbacks;
+    private final MpscQueue<ReceivedEvent> mRing;
+    private final Thread mThread;
+    private final AtomicBoolean mParked = new AtomicBoolean();
+
+    private volatile int mActiveInstance = NO_INSTANCE;
+    private volatile boolean mQuit = false;
+
+    private volatile long mDispatched = 0;
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile int mMaxDepth = 0;
+
+    /**
+     * @param ringSize How many events may wait for the dispatch thread. Events arriving while
+     * the ring is full are dropped.
+     */
+    HciRxDispatcher(BTVSCallbacks callbacks, int ringSize)
+    {
+        mCallbacks = callbacks;
+        mRing = new MpscQueue<ReceivedEvent>(ringSize);
+
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                dispatchLoop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Starts taking events from the given interface instance, or stops taking any with
+     * {@link #NO_INSTANCE}.
+     */
+    void setActiveInstance(int instance)
+    {
+        mActiveInstance = instance;
+    }
+
+    /**
+     * Stops taking events and ends the dispatch thread. Events still waiting are dropped.
+     */
+    void quit()
+    {
+        mActiveInstance = NO_INSTANCE;
+        mQuit = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Called on a bluetooth callback thread.
+     *
+     * @return false if the dispatcher is not active for the instance, in which case the event
+     * must go through the state machine.
+     */
+    boolean offer(int instance, ReceivedEvent event)
+    {
+        if (instance != mActiveInstance) return false;
+
+        if (!mRing.offer(event))
+        {
+            mDropped.incrementAndGet();
+            if (DEBUG) Log.w(TAG, "RX ring full, event dropped");
+            return true;
+        }
+
+        int depth = mRing.size();
+        if (depth > mMaxDepth) mMaxDepth = depth;
+
+        if (mParked.compareAndSet(true, false))
+        {
+            LockSupport.unpark(mThread);
+        }
+        return true;
+    }
+
+    private void dispatchLoop()
+    {
+        while (!mQuit)
+        {
+            ReceivedEvent event = mRing.poll();
+            if (event != null)
+            {
+                event.deliver(mCallbacks);
+                mDispatched++;
+                continue;
+            }
+
+            mParked.set(true);
+            if (mRing.size() == 0 && !mQuit)
+            {
+                LockSupport.park(this);
+            }
+            mParked.set(false);
+        }
+
+        if (DEBUG) Log.d(TAG, "Dispatch thread quit, " + mRing.size() + " events dropped");
+    }
+
+    void dump(PrintWriter pw)
+    {
+        pw.println("  HCI RX dispatch: active=" + (mActiveInstance != NO_INSTANCE)
+                + " depth=" + mRing.size() + "/" + mRing.capacity() + " maxDepth=" + mMaxDepth
+                + " dispatched=" + mDispatched + " dropped=" + mDropped.get());
+    }
+}
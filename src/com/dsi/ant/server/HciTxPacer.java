@@ -0,0 +1,115 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Decides how long to wait between HCI commands, based on how often the controller has recently
+ * been too busy to take them.
+ *
+ * Every busy result doubles the delay, up to the maximum, and every accepted command halves it,
+ * down to the minimum. Retries always wait for the delay. First attempts only wait once the
+ * recent busy rate is high enough that sending right away is likely to fail anyway. Waits are
+ * randomised between half and all of the delay so that retries spread out.
+ *
+ * The pacer never sleeps itself, the {@link TxWriter} holds messages back for what it returns.
+ */
+final class HciTxPacer
+{
+    /** Weight of the newest result in the busy rate. */
+    private static final float BUSY_RATE_WEIGHT = 0.125f;
+
+    /** Busy rate above which first attempts are paced as well as retries. */
+    private static final float BUSY_RATE_PACING_THRESHOLD = 0.25f;
+
+    private final long mMinDelayMicros;
+    private final long mMaxDelayMicros;
+    private final Random mJitter = new Random();
+
+    private long mDelayMicros;
+    private float mBusyRate = 0;
+
+    private long mBusyCount = 0;
+    private long mSuccessCount = 0;
+    private long mTotalWaitMicros = 0;
+
+    HciTxPacer(long minDelayMicros, long maxDelayMicros)
+    {
+        mMinDelayMicros = Math.max(1, minDelayMicros);
+        mMaxDelayMicros = Math.max(mMinDelayMicros, maxDelayMicros);
+        mDelayMicros = mMinDelayMicros;
+    }
+
+    /**
+     * @return How long to wait before the first attempt at a command, usually 0.
+     */
+    synchronized long getSendDelayMicros()
+    {
+        if (mBusyRate < BUSY_RATE_PACING_THRESHOLD) return 0;
+        return jitter();
+    }
+
+    /**
+     * @return How long to wait before trying a command again after the controller was busy.
+     */
+    synchronized long getRetryDelayMicros()
+    {
+        return jitter();
+    }
+
+    /**
+     * The controller accepted a command.
+     */
+    synchronized void onSuccess()
+    {
+        mSuccessCount++;
+        mBusyRate -= mBusyRate * BUSY_RATE_WEIGHT;
+        mDelayMicros = Math.max(mMinDelayMicros, mDelayMicros / 2);
+    }
+
+    /**
+     * The controller was too busy to take a command.
+     */
+    synchronized void onBusy()
+    {
+        mBusyCount++;
+        mBusyRate += (1 - mBusyRate) * BUSY_RATE_WEIGHT;
+        mDelayMicros = Math.min(mMaxDelayMicros, mDelayMicros * 2);
+    }
+
+    /**
+     * Must be called with the pacer lock held.
+     */
+    private long jitter()
+    {
+        long half = mDelayMicros / 2;
+        long wait = half + (long) (mJitter.nextFloat() * (mDelayMicros - half));
+        mTotalWaitMicros += wait;
+        return wait;
+    }
+
+    synchronized void dump(PrintWriter pw)
+    {
+        pw.println("  HCI pacing: delayUs=" + mDelayMicros + " (" + mMinDelayMicros + "-"
+                + mMaxDelayMicros + ") busyRate=" + mBusyRate + " busy=" + mBusyCount
+                + " accepted=" + mSuccessCount + " totalWaitUs=" + mTotalWaitMicros);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.io.PrintWriter;
+
+/**
+ * Counts how long something took in power of 2 buckets of microseconds, for dumps.
+ *
+ * Bucket n holds durations of at least 2^(n-1) and under 2^n microseconds, bucket 0 those under
+ * 1 microsecond, and the last bucket everything longer.
+ */
+final class LatencyHistogram
+{
+    /** The last bucket starts at 2^(BUCKET_COUNT - 2) microseconds, about 4 seconds. */
+    private static final int BUCKET_COUNT = 24;
+
+    private final String mName;
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mTotalNanos = 0;
+    private long mMaxNanos = 0;
+
+    LatencyHistogram(String name)
+    {
+        mName = name;
+    }
+
+    /**
+     * Negative durations, from clocks that went backwards, are counted as 0.
+     */
+    synchronized void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+
+        mCount++;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) mMaxNanos = nanos;
+    }
+
+    synchronized long getCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * @return The duration under which the given fraction of those recorded fall, rounded up to
+     * the end of its bucket but no more than the longest, in microseconds.
+     */
+    private long getPercentileMicros(double fraction)
+    {
+        long target = (long) Math.ceil(mCount * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++)
+        {
+            seen += mBuckets[i];
+            if (seen >= target) return Math.min(1L << i, mMaxNanos / 1000);
+        }
+        return mMaxNanos / 1000;
+    }
+
+    /**
+     * Prints a line of totals, and a line with the count in each bucket used.
+     *
+     * @param indent Put in front of each line.
+     */
+    synchronized void dump(PrintWriter pw, String indent)
+    {
+        if (mCount == 0)
+        {
+            pw.println(indent + mName + ": count=0");
+            return;
+        }
+
+        pw.println(indent + mName + ": count=" + mCount
+                + " avgUs=" + (mTotalNanos / mCount / 1000)
+                + " p50Us=" + getPercentileMicros(0.5)
+                + " p99Us=" + getPercentileMicros(0.99)
+                + " maxUs=" + (mMaxNanos / 1000));
+
+        StringBuilder buckets = new StringBuilder(indent + " ");
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            if (mBuckets[i] == 0) continue;
+
+            String bound = (i < BUCKET_COUNT - 1) ? "<" + (1L << i) : ">=" + (1L << (i - 1));
+            buckets.append(' ').append(bound).append("us=").append(mBuckets[i]);
+        }
+        pw.println(buckets);
+    }
+}
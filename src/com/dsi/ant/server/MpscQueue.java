@@ -0,0 +1,133 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producer threads and a single consumer thread.
+ *
+ * Each slot carries a sequence number. A producer claims a slot by advancing the tail with a
+ * compare-and-set, writes its element, then publishes it by moving the slot's sequence on. The
+ * consumer only reads a slot once it has been published, so neither side ever blocks the other.
+ */
+final class MpscQueue<E>
+{
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicReferenceArray<E> mElements;
+    private final AtomicLongArray mSequences;
+
+    /** Next slot to be claimed by a producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** Next slot to be read by the consumer. Only written by the consumer. */
+    private volatile long mHead = 0;
+
+    /**
+     * @param capacity The most elements held at once, rounded up to a power of 2.
+     */
+    MpscQueue(int capacity)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        mCapacity = size;
+        mMask = size - 1;
+        mElements = new AtomicReferenceArray<E>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+        {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element. May be called from any thread.
+     *
+     * @return false if the queue is full.
+     */
+    boolean offer(E element)
+    {
+        while (true)
+        {
+            long tail = mTail.get();
+            int index = (int) (tail & mMask);
+            long available = mSequences.get(index) - tail;
+
+            if (available == 0)
+            {
+                if (mTail.compareAndSet(tail, tail + 1))
+                {
+                    mElements.set(index, element);
+                    // Publish to the consumer.
+                    mSequences.set(index, tail + 1);
+                    return true;
+                }
+            }
+            else if (available < 0)
+            {
+                // The consumer has not freed this slot from the previous lap yet.
+                return false;
+            }
+            // Otherwise another producer claimed the slot first, try the next one.
+        }
+    }
+
+    /**
+     * Removes the oldest published element. Must only be called from the consumer thread.
+     *
+     * @return The element, or null if there is none.
+     */
+    E poll()
+    {
+        long head = mHead;
+        int index = (int) (head & mMask);
+        if (mSequences.get(index) != head + 1)
+        {
+            return null;
+        }
+
+        E element = mElements.get(index);
+        mElements.set(index, null);
+        // Free the slot for the producers' next lap.
+        mSequences.set(index, head + mCapacity);
+        mHead = head + 1;
+        return element;
+    }
+
+    /**
+     * @return The number of elements claimed but not yet consumed. Only an estimate while other
+     * threads are using the queue.
+     */
+    int size()
+    {
+        return (int) Math.max(0, mTail.get() - mHead);
+    }
+
+    int capacity()
+    {
+        return mCapacity;
+    }
+}
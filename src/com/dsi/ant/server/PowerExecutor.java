@@ -0,0 +1,367 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.LinkedList;
+
+/**
+ * Runs every enable and disable of the radio, one at a time, on a single long-lived thread.
+ *
+ * Only the latest state asked for is kept, so requests made while a transition is running replace
+ * each other, and requests that cancel each other out never run at all. Before each transition
+ * the radio's state is checked again: nothing is done if it is already in, or on its way to, the
+ * state wanted, and a transition the lower layers are still making the other way is waited out
+ * first.
+ *
+ * Other tasks may be posted to run on the thread between transitions, and a single idle task
+ * may be scheduled to run on it after a delay, as long as no transition is waiting by then.
+ */
+final class PowerExecutor
+{
+    private static final String TAG = "AntHalPowerExecutor";
+    private static final boolean DEBUG = false;
+
+    /** The longest to wait for the lower layers to finish a transition the other way. */
+    private static final long SETTLE_TIMEOUT_MILLIS = 5000;
+
+    /** How often to look at the state again while waiting, in case a change was missed. */
+    private static final long SETTLE_POLL_MILLIS = 100;
+
+    interface Power
+    {
+        /**
+         * @return An {@link AntHalDefine} state.
+         */
+        int getState();
+
+        /**
+         * Enables the radio, blocking until done.
+         *
+         * @return An {@link AntHalDefine} result.
+         */
+        int enable();
+
+        /**
+         * Disables the radio, blocking until done.
+         *
+         * @return An {@link AntHalDefine} result.
+         */
+        int disable();
+    }
+
+    private final Power mPower;
+    private Thread mThread;
+
+    private final Object mExecutor_LOCK = new Object();
+    /** The state to bring the radio to next, null if there is nothing to do. */
+    private Boolean mDesired = null;
+    /** When the desired state was first asked for, from {@link System#nanoTime()}. */
+    private long mRequestedNanos;
+    private boolean mRunning = false;
+    private boolean mStopped = false;
+
+    /** Tasks posted to run before the next transition. */
+    private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+    /** null if there is none. */
+    private Runnable mIdleTask = null;
+    /** When the idle task is due, from {@link SystemClock#elapsedRealtime()}. */
+    private long mIdleAtMillis;
+
+    private long mRequests = 0;
+    private long mCoalesced = 0;
+    private long mSkipped = 0;
+    private long mEnables = 0;
+    private long mDisables = 0;
+    private long mFailures = 0;
+    private long mSettleWaits = 0;
+    private final LatencyHistogram mTimeToEnabled = new LatencyHistogram("time to enabled");
+    private final LatencyHistogram mTimeToDisabled = new LatencyHistogram("time to disabled");
+
+    PowerExecutor(Power power)
+    {
+        mPower = power;
+    }
+
+    synchronized void start()
+    {
+        if (mThread != null) return;
+
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                runLoop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Asks for the radio to be brought to a state, and returns straight away.
+     *
+     * @param enable true to enable the radio, false to disable it.
+     */
+    void request(boolean enable)
+    {
+        synchronized (mExecutor_LOCK)
+        {
+            mRequests++;
+            if (mDesired != null && mDesired == enable)
+            {
+                mCoalesced++;
+                return;
+            }
+
+            mDesired = enable;
+            mRequestedNanos = System.nanoTime();
+            mExecutor_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Runs a task on the executor's thread, after the running transition if any.
+     */
+    void post(Runnable task)
+    {
+        synchronized (mExecutor_LOCK)
+        {
+            if (mStopped) return;
+
+            mTasks.add(task);
+            mExecutor_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Runs a task on the executor's thread once the delay has passed and no transition is
+     * waiting, in place of any idle task already scheduled.
+     */
+    void scheduleIdle(Runnable task, long delayMillis)
+    {
+        synchronized (mExecutor_LOCK)
+        {
+            mIdleTask = task;
+            mIdleAtMillis = SystemClock.elapsedRealtime() + delayMillis;
+            mExecutor_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if a transition is running or waiting to run.
+     */
+    boolean isBusy()
+    {
+        synchronized (mExecutor_LOCK)
+        {
+            return mRunning || mDesired != null;
+        }
+    }
+
+    /**
+     * Called whenever the radio's state changes, so a transition waiting for the lower layers can
+     * go ahead.
+     */
+    void onStateChanged()
+    {
+        synchronized (mExecutor_LOCK)
+        {
+            mExecutor_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Drops anything waiting and stops the thread once the running transition is done.
+     */
+    void stop()
+    {
+        synchronized (mExecutor_LOCK)
+        {
+            mStopped = true;
+            mDesired = null;
+            mTasks.clear();
+            mIdleTask = null;
+            mExecutor_LOCK.notifyAll();
+        }
+    }
+
+    private void runLoop()
+    {
+        while (true)
+        {
+            boolean enable = false;
+            long requestedNanos = 0;
+            Runnable task = null;
+
+            synchronized (mExecutor_LOCK)
+            {
+                mRunning = false;
+                try
+                {
+                    while (!mStopped && mDesired == null)
+                    {
+                        if (!mTasks.isEmpty())
+                        {
+                            task = mTasks.removeFirst();
+                            break;
+                        }
+                        if (mIdleTask == null)
+                        {
+                            mExecutor_LOCK.wait();
+                            continue;
+                        }
+
+                        long remaining = mIdleAtMillis - SystemClock.elapsedRealtime();
+                        if (remaining <= 0)
+                        {
+                            task = mIdleTask;
+                            mIdleTask = null;
+                            break;
+                        }
+                        mExecutor_LOCK.wait(remaining);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    mStopped = true;
+                }
+                if (mStopped) break;
+
+                mRunning = true;
+                if (task == null)
+                {
+                    enable = mDesired;
+                    requestedNanos = mRequestedNanos;
+                    mDesired = null;
+                }
+            }
+
+            if (task != null)
+            {
+                task.run();
+            }
+            else
+            {
+                runTransition(enable, requestedNanos);
+            }
+        }
+    }
+
+    private void runTransition(boolean enable, long requestedNanos)
+    {
+        int state = waitForSettled(enable);
+        if (isInOrGoingTo(state, enable))
+        {
+            if (DEBUG) Log.d(TAG, "Already " + AntHalDefine.getAntHalStateString(state));
+            synchronized (mExecutor_LOCK)
+            {
+                mSkipped++;
+            }
+            return;
+        }
+
+        int result = enable ? mPower.enable() : mPower.disable();
+        long elapsed = System.nanoTime() - requestedNanos;
+
+        synchronized (mExecutor_LOCK)
+        {
+            if (enable)
+            {
+                mEnables++;
+            }
+            else
+            {
+                mDisables++;
+            }
+
+            if (result == AntHalDefine.ANT_HAL_RESULT_SUCCESS)
+            {
+                (enable ? mTimeToEnabled : mTimeToDisabled).record(elapsed);
+            }
+            else
+            {
+                mFailures++;
+                Log.w(TAG, (enable ? "Enable" : "Disable") + " failed: "
+                        + AntHalDefine.getAntHalResultString(result));
+            }
+        }
+    }
+
+    /**
+     * Waits while the lower layers are making a transition away from the state wanted.
+     *
+     * @return The radio's state once settled, or when giving up waiting.
+     */
+    private int waitForSettled(boolean enable)
+    {
+        long deadline = SystemClock.elapsedRealtime() + SETTLE_TIMEOUT_MILLIS;
+        int state = mPower.getState();
+        while (isGoingFrom(state, enable))
+        {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) break;
+
+            synchronized (mExecutor_LOCK)
+            {
+                mSettleWaits++;
+                try
+                {
+                    mExecutor_LOCK.wait(Math.min(remaining, SETTLE_POLL_MILLIS));
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+            state = mPower.getState();
+        }
+        return state;
+    }
+
+    private static boolean isInOrGoingTo(int state, boolean enable)
+    {
+        if (enable)
+        {
+            return state == AntHalDefine.ANT_HAL_STATE_ENABLED
+                    || state == AntHalDefine.ANT_HAL_STATE_ENABLING;
+        }
+        return state == AntHalDefine.ANT_HAL_STATE_DISABLED
+                || state == AntHalDefine.ANT_HAL_STATE_DISABLING;
+    }
+
+    private static boolean isGoingFrom(int state, boolean enable)
+    {
+        return state == (enable ? AntHalDefine.ANT_HAL_STATE_DISABLING
+                : AntHalDefine.ANT_HAL_STATE_ENABLING);
+    }
+
+    void dump(PrintWriter pw)
+    {
+        synchronized (mExecutor_LOCK)
+        {
+            pw.println("  Power: running=" + mRunning + " desired=" + mDesired
+                    + " requests=" + mRequests + " coalesced=" + mCoalesced
+                    + " skipped=" + mSkipped + " enables=" + mEnables + " disables=" + mDisables
+                    + " failures=" + mFailures + " settleWaits=" + mSettleWaits);
+            mTimeToEnabled.dump(pw, "    ");
+            mTimeToDisabled.dump(pw, "    ");
+        }
+    }
+}
@@ -0,0 +1,712 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.dsi.ant.core.JAntUtils;
+import com.dsi.ant.server.HalSettings.RxOverflowPolicy;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Holds received ANT messages for one client and delivers them on a thread of the client's own,
+ * so a slow client never holds up the receive thread or the other clients.
+ *
+ * Messages are delivered one at a time through {@link AntHalClient#rxMessage(byte[])}, or, once
+ * batching is turned on, several at a time through
+ * {@link AntHalClient#rxMessages(byte[], int)} once either the maximum number of messages is
+ * waiting or the oldest has waited for the latency budget.
+ *
+ * Once the client has a {@link SharedRxRing}, messages are written into it instead, as many as
+ * fit at a time, and the client is only called to ring its doorbell.
+ *
+ * With burst assembly on, burst packets are handed to a {@link BurstAssembler} instead of being
+ * queued, and each finished transfer takes a single place in the queue, delivered through
+ * {@link AntHalClient#rxBurst(int, byte[], int, int)}.
+ *
+ * With conflation on, a broadcast data message still waiting is replaced, in its place in the
+ * queue, by a newer broadcast for the same channel, and broadcasts repeating the previous
+ * payload may be dropped as well.
+ *
+ * Every message keeps the time it was received at the transport, which goes to the client with
+ * it once timestamps are turned on, and is used for the latency histograms either way.
+ *
+ * The queue is bounded, so a client that stops taking messages only loses messages instead of
+ * holding up the radio. What is dropped once it is full is up to the {@link RxOverflowPolicy}.
+ */
+final class RxDeliveryQueue
+{
+    private static final String TAG = "AntHalRxDelivery";
+    private static final boolean DEBUG = false;
+
+    private static final int CHANNEL_COUNT = AntMessage.CHANNEL_NUMBER_MASK + 1;
+
+    /** Holds a transfer's place in the queue, the transfer itself is in mTransfers. */
+    private static final byte[] TRANSFER = new byte[0];
+
+    private final AntHalClient mClient;
+    private final int mCapacity;
+    private final RxOverflowPolicy mOverflowPolicy;
+
+    private final Object mQueue_LOCK = new Object();
+    private final LinkedList<byte[]> mQueue = new LinkedList<byte[]>();
+    /** When each message in mQueue was received, in the same order. */
+    private final LinkedList<Long> mReceivedNanos = new LinkedList<Long>();
+    private final LinkedList<BurstAssembler.Transfer> mTransfers =
+            new LinkedList<BurstAssembler.Transfer>();
+    private boolean mStopped = false;
+    private boolean mTimestamps = false;
+
+    /** 0 when batching is off. */
+    private long mMaxLatencyNanos = 0;
+    private int mMaxMessages = 1;
+
+    /** null until the client opens a shared ring. */
+    private SharedRxRing.Writer mSharedRing = null;
+
+    /** null when burst assembly is off. */
+    private BurstAssembler mBurstAssembler = null;
+    private final ArrayList<BurstAssembler.Transfer> mFinishedTransfers =
+            new ArrayList<BurstAssembler.Transfer>();
+
+    private boolean mConflate = false;
+    private boolean mDropUnchanged = false;
+    /**
+     * The broadcast waiting in the queue for each channel, if conflating and nothing else has
+     * been queued for the channel since.
+     */
+    private final byte[][] mPendingBroadcast = new byte[CHANNEL_COUNT][];
+    /** The last broadcast queued for each channel since the channel's last event. */
+    private final byte[][] mLastBroadcast = new byte[CHANNEL_COUNT][];
+
+    private long mDelivered = 0;
+    private long mBatchesDelivered = 0;
+    private long mTransfersDelivered = 0;
+    private long mDropped = 0;
+    private long mOverflows = 0;
+    private int mMaxDepth = 0;
+    private long mConflated = 0;
+    private long mUnchanged = 0;
+
+    /** From being received at the transport to being taken off the queue to deliver. */
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram("RX received to delivery");
+    /** How long the client takes to accept each delivery. */
+    private final LatencyHistogram mCallbackTime = new LatencyHistogram("RX callback");
+
+    RxDeliveryQueue(AntHalClient client, int capacity, RxOverflowPolicy overflowPolicy)
+    {
+        mClient = client;
+        mCapacity = Math.max(1, capacity);
+        mOverflowPolicy = overflowPolicy;
+
+        new Thread(new Runnable() {
+            public void run() {
+                deliverLoop();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Queues a received message for delivery.
+     *
+     * @param message A complete ANT message. Must not be changed afterwards, as it may be shared
+     * with other clients.
+     * @param receivedNanos When the message was received, from
+     * {@link JAntUtils#elapsedRealtimeNanos()}.
+     */
+    void add(byte[] message, long receivedNanos)
+    {
+        synchronized (mQueue_LOCK)
+        {
+            if (mStopped) return;
+
+            if (mBurstAssembler != null)
+            {
+                boolean taken = mBurstAssembler.add(message, mFinishedTransfers);
+                queueFinishedTransfers(receivedNanos);
+                if (taken) return;
+            }
+
+            int broadcastChannel = -1;
+            if (mConflate)
+            {
+                broadcastChannel = AntMessage.getBroadcastChannel(message);
+                if (broadcastChannel >= 0)
+                {
+                    if (conflate(broadcastChannel, message, receivedNanos)) return;
+                }
+                else
+                {
+                    // A broadcast is only replaced while it is the newest message queued for
+                    // its channel, so it never moves past the channel's other messages.
+                    int channel = AntMessage.getRxChannel(message);
+                    if (channel >= 0)
+                    {
+                        mPendingBroadcast[channel] = null;
+                        if (message[AntMessage.OFFSET_ID] == AntMessage.MESG_RESPONSE_EVENT_ID)
+                        {
+                            mLastBroadcast[channel] = null;
+                        }
+                    }
+                }
+            }
+
+            if (enqueue(message, receivedNanos) && broadcastChannel >= 0)
+            {
+                mPendingBroadcast[broadcastChannel] = message;
+                mLastBroadcast[broadcastChannel] = message;
+            }
+        }
+    }
+
+    /**
+     * Must be called with mQueue_LOCK held.
+     *
+     * @return false if the message was dropped as the queue is full.
+     */
+    private boolean enqueue(byte[] message, long receivedNanos)
+    {
+        if (mQueue.size() >= mCapacity)
+        {
+            mOverflows++;
+            mDropped++;
+            if (DEBUG) Log.w(TAG, "RX queue full (" + mOverflowPolicy + ") for " + mClient);
+            if (!makeRoom(message)) return false;
+        }
+
+        mQueue.add(message);
+        mReceivedNanos.add(receivedNanos);
+        int depth = mQueue.size();
+        if (depth > mMaxDepth) mMaxDepth = depth;
+
+        if (depth == 1 || depth >= mMaxMessages)
+        {
+            mQueue_LOCK.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Queues the transfers the burst assembler has finished. Must be called with mQueue_LOCK
+     * held.
+     *
+     * @param receivedNanos When the packet that finished them was received.
+     */
+    private void queueFinishedTransfers(long receivedNanos)
+    {
+        for (BurstAssembler.Transfer transfer : mFinishedTransfers)
+        {
+            if (enqueue(TRANSFER, receivedNanos))
+            {
+                mTransfers.add(transfer);
+            }
+            else
+            {
+                transfer.recycle();
+            }
+        }
+        mFinishedTransfers.clear();
+    }
+
+    /**
+     * Replaces the broadcast waiting for the channel in its place in the queue, if there is one,
+     * or drops the new broadcast as unchanged. Must be called with mQueue_LOCK held.
+     *
+     * @return false if the new broadcast still has to be queued.
+     */
+    private boolean conflate(int channel, byte[] message, long receivedNanos)
+    {
+        if (mDropUnchanged && AntMessage.isSameBroadcastPayload(message, mLastBroadcast[channel]))
+        {
+            mUnchanged++;
+            return true;
+        }
+
+        byte[] pending = mPendingBroadcast[channel];
+        int index = (pending != null) ? mQueue.indexOf(pending) : -1;
+        if (index < 0) return false;
+
+        mQueue.set(index, message);
+        mReceivedNanos.set(index, receivedNanos);
+        mPendingBroadcast[channel] = message;
+        mLastBroadcast[channel] = message;
+        mConflated++;
+        return true;
+    }
+
+    /**
+     * Must be called with mQueue_LOCK held.
+     */
+    private byte[] removeFirst()
+    {
+        byte[] message = mQueue.removeFirst();
+        mReceivedNanos.removeFirst();
+        if (mConflate) forgetPending(message);
+        return message;
+    }
+
+    /**
+     * Removes the first message to deliver it. Must be called with mQueue_LOCK held.
+     *
+     * @param now From {@link JAntUtils#elapsedRealtimeNanos()}.
+     * @return When the message was received.
+     */
+    private long takeFirst(long now)
+    {
+        long receivedNanos = mReceivedNanos.getFirst();
+        removeFirst();
+        mQueueLatency.record(now - receivedNanos);
+        return receivedNanos;
+    }
+
+    /**
+     * Drops the oldest message, or transfer. Must be called with mQueue_LOCK held.
+     */
+    private void dropFirst()
+    {
+        if (removeFirst() == TRANSFER)
+        {
+            mTransfers.removeFirst().recycle();
+        }
+    }
+
+    /**
+     * Must be called with mQueue_LOCK held.
+     */
+    private void forgetPending(byte[] message)
+    {
+        int channel = AntMessage.getBroadcastChannel(message);
+        if (channel >= 0 && mPendingBroadcast[channel] == message)
+        {
+            mPendingBroadcast[channel] = null;
+        }
+    }
+
+    /**
+     * Drops a queued message to make room for a new one, as the overflow policy says. Must be
+     * called with mQueue_LOCK held.
+     *
+     * @return false if the new message is the one to drop.
+     */
+    private boolean makeRoom(byte[] message)
+    {
+        switch (mOverflowPolicy)
+        {
+            case DROP_OLDEST:
+                dropFirst();
+                return true;
+            case LATEST_PER_CHANNEL:
+                int channel = AntMessage.getRxChannel(message);
+                if (channel < 0) return false;
+
+                Iterator<byte[]> iterator = mQueue.iterator();
+                Iterator<Long> times = mReceivedNanos.iterator();
+                while (iterator.hasNext())
+                {
+                    byte[] queued = iterator.next();
+                    times.next();
+                    if (AntMessage.getRxChannel(queued) == channel
+                            && queued[AntMessage.OFFSET_ID] == message[AntMessage.OFFSET_ID])
+                    {
+                        iterator.remove();
+                        times.remove();
+                        if (mConflate) forgetPending(queued);
+                        return true;
+                    }
+                }
+                return false;
+            case DROP_NEWEST:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param maxLatencyNanos The longest a message may be held back, 0 to turn batching off.
+     * @param maxMessages The most messages delivered at once.
+     */
+    void setBatching(long maxLatencyNanos, int maxMessages)
+    {
+        synchronized (mQueue_LOCK)
+        {
+            boolean enable = maxLatencyNanos > 0 && maxMessages > 1;
+            mMaxLatencyNanos = enable ? maxLatencyNanos : 0;
+            mMaxMessages = enable ? maxMessages : 1;
+            mQueue_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * @param dropUnchanged Whether broadcasts repeating the previous payload on their channel are
+     * dropped as well.
+     */
+    void setConflation(boolean enable, boolean dropUnchanged)
+    {
+        synchronized (mQueue_LOCK)
+        {
+            mConflate = enable;
+            mDropUnchanged = enable && dropUnchanged;
+            Arrays.fill(mPendingBroadcast, null);
+            Arrays.fill(mLastBroadcast, null);
+        }
+    }
+
+    /**
+     * Turns delivery of the time each message was received on or off. Not delivered through a
+     * shared ring, or for transfers.
+     */
+    void setTimestamps(boolean enable)
+    {
+        synchronized (mQueue_LOCK)
+        {
+            mTimestamps = enable;
+        }
+    }
+
+    /**
+     * Delivers messages through a shared ring from now on. Transfers are still delivered
+     * through calls.
+     */
+    void setSharedRing(SharedRxRing.Writer ring)
+    {
+        synchronized (mQueue_LOCK)
+        {
+            mSharedRing = ring;
+            mQueue_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * @param maxSize The largest transfer delivered in one piece, in bytes.
+     */
+    void setBurstAssembly(boolean enable, int maxSize)
+    {
+        synchronized (mQueue_LOCK)
+        {
+            if (mBurstAssembler != null)
+            {
+                mBurstAssembler.flush(mFinishedTransfers);
+                queueFinishedTransfers(JAntUtils.elapsedRealtimeNanos());
+            }
+            mBurstAssembler = enable ? new BurstAssembler(maxSize) : null;
+        }
+    }
+
+    /**
+     * Delivers anything already queued, then stops the delivery thread.
+     */
+    void stop()
+    {
+        synchronized (mQueue_LOCK)
+        {
+            mStopped = true;
+            mQueue_LOCK.notifyAll();
+        }
+    }
+
+    private void deliverLoop()
+    {
+        while (true)
+        {
+            byte[] message = null;
+            byte[] messages = null;
+            long receivedNanos = 0;
+            long[] batchReceivedNanos = null;
+            BurstAssembler.Transfer transfer = null;
+            boolean doorbell = false;
+            boolean timestamps;
+            int count;
+
+            synchronized (mQueue_LOCK)
+            {
+                try
+                {
+                    while (!mStopped && !isReady())
+                    {
+                        if (mQueue.isEmpty())
+                        {
+                            mQueue_LOCK.wait();
+                        }
+                        else
+                        {
+                            long remaining = getLatencyRemaining();
+                            if (remaining > 0)
+                            {
+                                mQueue_LOCK.wait(remaining / 1000000, (int) (remaining % 1000000));
+                            }
+                        }
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    mStopped = true;
+                }
+
+                if (mQueue.isEmpty())
+                {
+                    if (mStopped) break;
+                    continue;
+                }
+
+                long now = JAntUtils.elapsedRealtimeNanos();
+                timestamps = mTimestamps;
+                if (mQueue.getFirst() == TRANSFER)
+                {
+                    takeFirst(now);
+                    transfer = mTransfers.removeFirst();
+                    mTransfersDelivered++;
+                    count = 0;
+                }
+                else if (mSharedRing != null)
+                {
+                    count = writeToSharedRing(now);
+                    if (count == 0)
+                    {
+                        // Whatever is left when stopping is lost if the client does not read.
+                        if (mStopped) break;
+                        waitForSharedRing();
+                        continue;
+                    }
+                    doorbell = mSharedRing.publish();
+                }
+                else if (mMaxLatencyNanos == 0)
+                {
+                    message = mQueue.getFirst();
+                    receivedNanos = takeFirst(now);
+                    count = 1;
+                }
+                else
+                {
+                    count = countBatch();
+                    if (timestamps) batchReceivedNanos = new long[count];
+                    messages = pack(count, now, batchReceivedNanos);
+                    mBatchesDelivered++;
+                }
+                mDelivered += count;
+            }
+
+            long callStart = System.nanoTime();
+            try
+            {
+                if (transfer != null)
+                {
+                    mClient.rxBurst(transfer.channel, transfer.data, transfer.length,
+                            transfer.status);
+                }
+                else if (doorbell)
+                {
+                    mClient.rxRingReady();
+                }
+                else if (batchReceivedNanos != null)
+                {
+                    mClient.rxMessages(messages, count, batchReceivedNanos);
+                }
+                else if (messages != null)
+                {
+                    mClient.rxMessages(messages, count);
+                }
+                else if (message != null && timestamps)
+                {
+                    mClient.rxMessage(message, receivedNanos);
+                }
+                else if (message != null)
+                {
+                    mClient.rxMessage(message);
+                }
+            }
+            catch (RemoteException e)
+            {
+                // Don't do anything as this is a problem in the application
+                if (DEBUG) Log.e(TAG, "ANT HAL Rx Message callback failure in application", e);
+            }
+            if (transfer != null || doorbell || messages != null || message != null)
+            {
+                mCallbackTime.record(System.nanoTime() - callStart);
+            }
+
+            if (transfer != null)
+            {
+                synchronized (mQueue_LOCK)
+                {
+                    transfer.recycle();
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves messages from the front of the queue into the shared ring, up to the next transfer
+     * or until the ring is full. Must be called with mQueue_LOCK held.
+     *
+     * @return The number of messages moved.
+     */
+    private int writeToSharedRing(long now)
+    {
+        int count = 0;
+        while (!mQueue.isEmpty() && mQueue.getFirst() != TRANSFER
+                && mSharedRing.write(mQueue.getFirst()))
+        {
+            takeFirst(now);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Waits for the client to read on from its shared ring, until
+     * {@link #onSharedRingRead()}. Must be called with mQueue_LOCK held.
+     */
+    private void waitForSharedRing()
+    {
+        mSharedRing.setWaiting(true);
+        try
+        {
+            // The client may have read on before seeing the wait.
+            if (!mSharedRing.hasRoom(mQueue.getFirst()))
+            {
+                mQueue_LOCK.wait();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            mStopped = true;
+        }
+        mSharedRing.setWaiting(false);
+    }
+
+    /**
+     * Called when the client has read on from its shared ring.
+     */
+    void onSharedRingRead()
+    {
+        synchronized (mQueue_LOCK)
+        {
+            mQueue_LOCK.notifyAll();
+        }
+    }
+
+    /**
+     * Must be called with mQueue_LOCK held.
+     */
+    private boolean isReady()
+    {
+        if (mQueue.isEmpty()) return false;
+        if (mMaxLatencyNanos == 0 || mSharedRing != null) return true;
+
+        return mQueue.size() >= mMaxMessages || getLatencyRemaining() <= 0;
+    }
+
+    /**
+     * @return How much longer the oldest waiting message may be held back, counted from when it
+     * was received. Must be called with mQueue_LOCK held and the queue not empty.
+     */
+    private long getLatencyRemaining()
+    {
+        // Not always the first, a conflated broadcast takes the place of an older one. Fewer
+        // than the batch size are waiting here.
+        long oldest = mReceivedNanos.getFirst();
+        for (long receivedNanos : mReceivedNanos)
+        {
+            if (receivedNanos - oldest < 0) oldest = receivedNanos;
+        }
+        return oldest + mMaxLatencyNanos - JAntUtils.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @return How many messages from the front of the queue go in the next batch. A batch stops
+     * short of a transfer. Must be called with mQueue_LOCK held.
+     */
+    private int countBatch()
+    {
+        int count = 0;
+        for (byte[] queued : mQueue)
+        {
+            if (queued == TRANSFER || count == mMaxMessages) break;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes messages off the queue and lays them out back to back. Must be called with
+     * mQueue_LOCK held.
+     *
+     * @param receivedNanos Receives when each message was received, if not null.
+     */
+    private byte[] pack(int count, long now, long[] receivedNanos)
+    {
+        int length = 0;
+        int i = 0;
+        for (byte[] queued : mQueue)
+        {
+            if (i++ == count) break;
+            length += queued.length;
+        }
+
+        byte[] packed = new byte[length];
+        int offset = 0;
+        for (i = 0; i < count; i++)
+        {
+            byte[] queued = mQueue.getFirst();
+            long received = takeFirst(now);
+            if (receivedNanos != null) receivedNanos[i] = received;
+            System.arraycopy(queued, 0, packed, offset, queued.length);
+            offset += queued.length;
+        }
+        return packed;
+    }
+
+    void dump(PrintWriter pw)
+    {
+        synchronized (mQueue_LOCK)
+        {
+            pw.println("    RX delivery: depth=" + mQueue.size() + "/" + mCapacity
+                    + " maxDepth=" + mMaxDepth + " delivered=" + mDelivered
+                    + " overflow=" + mOverflowPolicy + " overflows=" + mOverflows
+                    + " dropped=" + mDropped + " timestamps=" + mTimestamps);
+            mQueueLatency.dump(pw, "    ");
+            mCallbackTime.dump(pw, "    ");
+            if (mMaxLatencyNanos > 0)
+            {
+                pw.println("    RX batching: maxLatencyUs=" + (mMaxLatencyNanos / 1000)
+                        + " maxMessages=" + mMaxMessages + " batches=" + mBatchesDelivered);
+            }
+            if (mSharedRing != null)
+            {
+                mSharedRing.dump(pw);
+            }
+            if (mBurstAssembler != null)
+            {
+                mBurstAssembler.dump(pw);
+                pw.println("      queued=" + mTransfers.size() + " delivered=" + mTransfersDelivered);
+            }
+            if (mConflate)
+            {
+                pw.println("    RX conflation: dropUnchanged=" + mDropUnchanged
+                        + " replaced=" + mConflated + " unchanged=" + mUnchanged);
+            }
+        }
+    }
+}
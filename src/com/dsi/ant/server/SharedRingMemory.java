@@ -0,0 +1,187 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory shared with a client for a ring, reachable only through the service's mapping and the
+ * descriptor handed to the client.
+ *
+ * From Android 8.1 it is anonymous shared memory, which never touches storage. Before that
+ * there is no public way to map ashmem from Java, so it is a file that is deleted as soon as it
+ * is mapped. android.os.SharedMemory is reached through reflection, so the service still builds
+ * in trees older than 8.1.
+ */
+final class SharedRingMemory
+{
+    private static final String TAG = "AntHalSharedRingMemory";
+
+    /** Build.VERSION_CODES.O_MR1, which older trees do not know. */
+    private static final int O_MR1 = 27;
+    private static final boolean HAS_SHARED_MEMORY = Build.VERSION.SDK_INT >= O_MR1;
+
+    private static final String NAME = "antring";
+
+    final ByteBuffer buffer;
+    final ParcelFileDescriptor descriptor;
+
+    private SharedRingMemory(ByteBuffer buffer, ParcelFileDescriptor descriptor)
+    {
+        this.buffer = buffer;
+        this.descriptor = descriptor;
+    }
+
+    /**
+     * @param directory Where to create the file if shared memory is not available, somewhere
+     * only the service can reach.
+     * @param size The size in bytes.
+     */
+    static SharedRingMemory create(File directory, int size) throws IOException
+    {
+        SharedRingMemory memory = null;
+        if (HAS_SHARED_MEMORY) memory = createAnonymous(size);
+        if (memory == null) memory = createFile(directory, size);
+        return memory;
+    }
+
+    /**
+     * @return null if android.os.SharedMemory is not as expected.
+     * @throws IOException If the memory could not be set up.
+     */
+    private static SharedRingMemory createAnonymous(int size) throws IOException
+    {
+        Method create;
+        Method mapReadWrite;
+        Method getFileDescriptor;
+        Method close;
+        try
+        {
+            Class<?> sharedMemory = Class.forName("android.os.SharedMemory");
+            create = sharedMemory.getMethod("create", String.class, int.class);
+            mapReadWrite = sharedMemory.getMethod("mapReadWrite");
+            getFileDescriptor = sharedMemory.getMethod("getFileDescriptor");
+            close = sharedMemory.getMethod("close");
+        }
+        catch (ClassNotFoundException e)
+        {
+            Log.w(TAG, "Shared memory not available, using a file", e);
+            return null;
+        }
+        catch (NoSuchMethodException e)
+        {
+            Log.w(TAG, "Shared memory not available, using a file", e);
+            return null;
+        }
+
+        Object memory = invoke(create, null, NAME, size);
+        try
+        {
+            // The mapping stays valid once the memory is closed.
+            ByteBuffer buffer = (ByteBuffer) invoke(mapReadWrite, memory);
+            ParcelFileDescriptor descriptor =
+                    ParcelFileDescriptor.dup((FileDescriptor) invoke(getFileDescriptor, memory));
+            return new SharedRingMemory(buffer, descriptor);
+        }
+        finally
+        {
+            invoke(close, memory);
+        }
+    }
+
+    /**
+     * @throws IOException In place of whatever the method threw, such as an ErrnoException.
+     */
+    private static Object invoke(Method method, Object receiver, Object... args)
+            throws IOException
+    {
+        try
+        {
+            return method.invoke(receiver, args);
+        }
+        catch (IllegalAccessException e)
+        {
+            // Only public methods are looked up.
+            throw new IllegalStateException(e.toString());
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+
+            IOException failure = new IOException(method.getName() + " failed: " + cause);
+            failure.initCause(cause);
+            throw failure;
+        }
+    }
+
+    private static SharedRingMemory createFile(File directory, int size) throws IOException
+    {
+        File file = File.createTempFile(NAME, null, directory);
+        try
+        {
+            RandomAccessFile ringFile = new RandomAccessFile(file, "rw");
+            try
+            {
+                ringFile.setLength(size);
+                // The mapping stays valid once the file is closed.
+                ByteBuffer buffer = ringFile.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, size);
+                ParcelFileDescriptor descriptor = ParcelFileDescriptor.open(file,
+                        ParcelFileDescriptor.MODE_READ_WRITE);
+                return new SharedRingMemory(buffer, descriptor);
+            }
+            finally
+            {
+                ringFile.close();
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /**
+     * Closes the service's copy of the descriptor, when it is not handed to the client.
+     */
+    void closeDescriptor()
+    {
+        try
+        {
+            descriptor.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing more to do with it.
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of received messages in memory shared with a client, so messages reach it without
+ * being copied through a Parcel each.
+ *
+ * The layout, all values big endian:
+ * <pre>
+ *  0  int   MAGIC
+ *  4  int   VERSION
+ *  8  int   data size in bytes, a power of 2
+ * 16  int   write position, only written by the service
+ * 24  int   read position, only written by the client
+ * 32  int   writer waiting, 0, or a new non-zero number each time the service waits for
+ *           room, only written by the service
+ * 64        data
+ * </pre>
+ * Positions count bytes from the start, wrapping around past the largest int, and are taken
+ * modulo the data size. They are 32 bits so every read and write of one is a single aligned
+ * access, which does not tear even on 32 bit processors. Each message is a record of a 4 byte
+ * sequence number, counting up from 0 with one per message, a 2 byte length and then the
+ * message, as given to IAntHal2Callback.antHalRxMessage(). Records wrap around the end of the
+ * data area.
+ *
+ * The {@link Writer} adds records, and only after a {@link #fence()} moves the write position
+ * on. The {@link Reader} reads the write position, and only after a fence reads the records
+ * before it. The read position is handed back the same way, so the writer never overwrites a
+ * record still being read.
+ *
+ * The writer rings the client's doorbell once it has published records the client may not know
+ * about, that is once the client has read everything up to the previous doorbell. The reader
+ * reads up to the write position, moving the read position on after each record, and once it
+ * has caught up waits for the next doorbell. Each side fences between writing its own position
+ * and reading the other's, so either the writer sees the reader caught up and rings, or the
+ * reader sees the new write position before it waits. No doorbell is lost, and the reader never
+ * needs to look again on a timeout.
+ *
+ * When the ring is too full for the next record the writer sets the writer waiting field, looks
+ * once more, and then waits for the client to call IAntHal2.rxRingRead(), which it does once it
+ * has read on and finds a new number there. As the two sides only ever write their own
+ * position, either can be tested against any ByteBuffer, such as a memory mapped file.
+ */
+final class SharedRxRing
+{
+    static final int MAGIC = 0x414E5452; // "ANTR"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_DATA_SIZE = 8;
+    private static final int OFFSET_WRITE_POSITION = 16;
+    private static final int OFFSET_READ_POSITION = 24;
+    private static final int OFFSET_WRITER_WAITING = 32;
+
+    private static final int RECORD_HEADER_SIZE = 6;
+
+    static final int MIN_DATA_SIZE = 4096;
+    static final int MAX_DATA_SIZE = 1 << 20;
+
+    /** Only touched by {@link #fence()}. */
+    private static volatile int sFence = 0;
+
+    /**
+     * @param requested The data size asked for.
+     * @return The data size to use, a power of 2 between {@link #MIN_DATA_SIZE} and
+     * {@link #MAX_DATA_SIZE}.
+     */
+    static int getDataSize(int requested)
+    {
+        int size = MIN_DATA_SIZE;
+        while (size < requested && size < MAX_DATA_SIZE)
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Keeps every access to shared memory before the call ahead of every access after it, as
+     * the other process sees them. Java 7 has no fence of its own, but a volatile write followed
+     * by a volatile read is a full barrier on Dalvik, ART and desktop VMs alike.
+     */
+    static void fence()
+    {
+        sFence = 0;
+        int unused = sFence;
+    }
+
+    /**
+     * Copies into a circular data area, wrapping around its end.
+     *
+     * @param base Where the data area starts in the buffer.
+     * @param mask The data area size less 1.
+     */
+    static void put(ByteBuffer ring, int base, int mask, int position, byte[] source, int length)
+    {
+        int start = position & mask;
+        int first = Math.min(length, mask + 1 - start);
+        ByteBuffer data = ring.duplicate();
+        data.position(base + start);
+        data.put(source, 0, first);
+        if (first < length)
+        {
+            data.position(base);
+            data.put(source, first, length - first);
+        }
+    }
+
+    /**
+     * Copies out of a circular data area, wrapping around its end.
+     */
+    static void get(ByteBuffer ring, int base, int mask, int position, byte[] dest, int length)
+    {
+        int start = position & mask;
+        int first = Math.min(length, mask + 1 - start);
+        ByteBuffer data = ring.duplicate();
+        data.position(base + start);
+        data.get(dest, 0, first);
+        if (first < length)
+        {
+            data.position(base);
+            data.get(dest, first, length - first);
+        }
+    }
+
+    /**
+     * The service's side of the ring. Only used from one thread.
+     */
+    static final class Writer
+    {
+        private final ByteBuffer mRing;
+        private final int mDataSize;
+        private final int mMask;
+        private final byte[] mRecordHeader = new byte[RECORD_HEADER_SIZE];
+
+        /** Written but not yet published. */
+        private int mWritePosition = 0;
+        private int mSequence = 0;
+        private int mDoorbellPosition = 0;
+        private int mWaitNumber = 0;
+
+        private long mWritten = 0;
+        private long mDoorbells = 0;
+        private long mFullWaits = 0;
+
+        /**
+         * Lays the ring out in a buffer of {@link #HEADER_SIZE} plus dataSize bytes.
+         *
+         * @param dataSize From {@link SharedRxRing#getDataSize(int)}.
+         */
+        Writer(ByteBuffer ring, int dataSize)
+        {
+            mRing = ring;
+            mDataSize = dataSize;
+            mMask = dataSize - 1;
+
+            mRing.putInt(OFFSET_DATA_SIZE, dataSize);
+            mRing.putInt(OFFSET_WRITE_POSITION, 0);
+            mRing.putInt(OFFSET_READ_POSITION, 0);
+            mRing.putInt(OFFSET_WRITER_WAITING, 0);
+            mRing.putInt(OFFSET_VERSION, VERSION);
+            mRing.putInt(OFFSET_MAGIC, MAGIC);
+            fence();
+        }
+
+        /**
+         * Adds a message, which the client will not see before {@link #publish()}.
+         *
+         * @return false if there is no room for it until the client reads more.
+         */
+        boolean write(byte[] message)
+        {
+            int recordSize = RECORD_HEADER_SIZE + message.length;
+            if (!hasRoom(message))
+            {
+                mFullWaits++;
+                return false;
+            }
+
+            ByteBuffer.wrap(mRecordHeader).putInt(mSequence).putShort((short) message.length);
+            put(mRing, HEADER_SIZE, mMask, mWritePosition, mRecordHeader, RECORD_HEADER_SIZE);
+            put(mRing, HEADER_SIZE, mMask, mWritePosition + RECORD_HEADER_SIZE, message,
+                    message.length);
+
+            mWritePosition += recordSize;
+            mSequence++;
+            mWritten++;
+            return true;
+        }
+
+        /**
+         * @return true if the message fits in the ring now.
+         */
+        boolean hasRoom(byte[] message)
+        {
+            int readPosition = mRing.getInt(OFFSET_READ_POSITION);
+            // The client is done with everything before the read position.
+            fence();
+            return mWritePosition + RECORD_HEADER_SIZE + message.length - readPosition
+                    <= mDataSize;
+        }
+
+        /**
+         * Tells the client whether the service is waiting for it to read on. Set before looking
+         * for room a last time and waiting.
+         */
+        void setWaiting(boolean waiting)
+        {
+            if (waiting && ++mWaitNumber == 0) mWaitNumber = 1;
+            mRing.putInt(OFFSET_WRITER_WAITING, waiting ? mWaitNumber : 0);
+            fence();
+        }
+
+        /**
+         * Makes the messages written so far visible to the client.
+         *
+         * @return true if the client's doorbell must be rung, as it may be waiting for them.
+         */
+        boolean publish()
+        {
+            fence();
+            mRing.putInt(OFFSET_WRITE_POSITION, mWritePosition);
+            fence();
+
+            if (mWritePosition == mDoorbellPosition) return false;
+            if (mRing.getInt(OFFSET_READ_POSITION) - mDoorbellPosition < 0) return false;
+
+            mDoorbellPosition = mWritePosition;
+            mDoorbells++;
+            return true;
+        }
+
+        void dump(PrintWriter pw)
+        {
+            int readPosition = mRing.getInt(OFFSET_READ_POSITION);
+            pw.println("    RX shared ring: size=" + mDataSize + " unread="
+                    + (mWritePosition - readPosition) + " written=" + mWritten
+                    + " doorbells=" + mDoorbells + " fullWaits=" + mFullWaits);
+        }
+    }
+
+    /**
+     * The client's side of the ring. Only used from one thread.
+     */
+    static final class Reader
+    {
+        private final ByteBuffer mRing;
+        private final int mMask;
+        private final byte[] mRecordHeader = new byte[RECORD_HEADER_SIZE];
+
+        private int mReadPosition;
+        private int mNextSequence = 0;
+        private int mLastWaitNumber = 0;
+
+        /**
+         * @throws IllegalArgumentException If the buffer does not hold a ring.
+         */
+        Reader(ByteBuffer ring)
+        {
+            fence();
+            if (ring.getInt(OFFSET_MAGIC) != MAGIC || ring.getInt(OFFSET_VERSION) != VERSION)
+            {
+                throw new IllegalArgumentException("Not an RX ring");
+            }
+
+            mRing = ring;
+            mMask = ring.getInt(OFFSET_DATA_SIZE) - 1;
+            mReadPosition = ring.getInt(OFFSET_READ_POSITION);
+        }
+
+        /**
+         * @return The next message, or null if every published message has been read, in which
+         * case the caller waits for the doorbell.
+         * @throws IllegalStateException If a record is out of sequence or runs past the write
+         * position, which means the ring is corrupt.
+         */
+        byte[] poll()
+        {
+            // Orders moving the read position on before looking for more, see the class comment.
+            fence();
+            int writePosition = mRing.getInt(OFFSET_WRITE_POSITION);
+            if (mReadPosition == writePosition) return null;
+            fence();
+
+            get(mRing, HEADER_SIZE, mMask, mReadPosition, mRecordHeader, RECORD_HEADER_SIZE);
+            ByteBuffer header = ByteBuffer.wrap(mRecordHeader);
+            int sequence = header.getInt();
+            int length = header.getShort() & 0xFFFF;
+            if (sequence != mNextSequence)
+            {
+                throw new IllegalStateException("Expected record " + mNextSequence
+                        + ", found " + sequence);
+            }
+            if (RECORD_HEADER_SIZE + length > writePosition - mReadPosition)
+            {
+                throw new IllegalStateException("Record " + sequence + " runs past the write"
+                        + " position");
+            }
+
+            byte[] message = new byte[length];
+            get(mRing, HEADER_SIZE, mMask, mReadPosition + RECORD_HEADER_SIZE, message,
+                    length);
+            mReadPosition += RECORD_HEADER_SIZE + length;
+            mNextSequence++;
+            fence();
+            mRing.putInt(OFFSET_READ_POSITION, mReadPosition);
+            return message;
+        }
+
+        /**
+         * @return true the first time this is asked while the service is waiting for room, in
+         * which case the caller calls IAntHal2.rxRingRead() once it has read on.
+         */
+        boolean isWriterWaiting()
+        {
+            fence();
+            int waitNumber = mRing.getInt(OFFSET_WRITER_WAITING);
+            if (waitNumber == 0 || waitNumber == mLastWaitNumber) return false;
+
+            mLastWaitNumber = waitNumber;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * A pair of rings in memory shared with a client: the client submits messages to send through
+ * one, and the service reports each result through the other. Messages are sent without a
+ * binder call each.
+ *
+ * The layout, all values big endian:
+ * <pre>
+ *  0  int   MAGIC
+ *  4  int   VERSION
+ *  8  int   submission area size in bytes, a power of 2
+ * 12  int   completion area size in bytes, a power of 2
+ * 16  int   submission write position, only written by the client
+ * 24  int   submission read position, only written by the service
+ * 32  int   completion write position, only written by the service
+ * 40  int   completion read position, only written by the client
+ * 64        submission area, then completion area
+ * </pre>
+ * Positions count bytes, wrapping around past the largest int, and are taken modulo the size
+ * of their area. A submission is a 4 byte
+ * request id, a 2 byte length and the message in the IAntHal ANTTxMessage format, wrapping
+ * around the end of the area. A completion is a 4 byte request id and a 4 byte AntHalDefine
+ * result, and there is one for every submission. The service stops taking submissions while
+ * the completion area could not hold the results of everything it has taken.
+ *
+ * Each side publishes and fences as {@link SharedRxRing} does, and rings the other's doorbell
+ * the same way: once it has published something new and the other side had read everything up
+ * to its previous doorbell.
+ */
+final class SharedTxRing
+{
+    static final int MAGIC = 0x414E5454; // "ANTT"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_SUBMIT_SIZE = 8;
+    private static final int OFFSET_COMPLETE_SIZE = 12;
+    private static final int OFFSET_SUBMIT_WRITE = 16;
+    private static final int OFFSET_SUBMIT_READ = 24;
+    private static final int OFFSET_COMPLETE_WRITE = 32;
+    private static final int OFFSET_COMPLETE_READ = 40;
+
+    private static final int SUBMISSION_HEADER_SIZE = 6;
+    private static final int COMPLETION_SIZE = 8;
+
+    /** A submitted message. */
+    static final class Submission
+    {
+        final int requestId;
+        final byte[] message;
+
+        private Submission(int requestId, byte[] message)
+        {
+            this.requestId = requestId;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The service's side. Only used from one thread.
+     */
+    static final class Server
+    {
+        private final ByteBuffer mRing;
+        private final int mSubmitSize;
+        private final int mSubmitMask;
+        private final int mCompleteBase;
+        private final int mCompleteMask;
+        private final int mCompleteCapacity;
+        private final byte[] mHeader = new byte[COMPLETION_SIZE];
+
+        private int mSubmitRead = 0;
+        private int mCompleteWrite = 0;
+        private int mDoorbellPosition = 0;
+
+        /** Submissions taken without a completion written yet. */
+        private int mUnfinished = 0;
+
+        private long mTaken = 0;
+        private long mDoorbells = 0;
+        private long mCompletionWaits = 0;
+
+        /**
+         * Lays the rings out in a buffer of {@link #HEADER_SIZE} plus both area sizes.
+         *
+         * @param submitSize From {@link SharedRxRing#getDataSize(int)}.
+         * @param completeSize From {@link SharedRxRing#getDataSize(int)}.
+         */
+        Server(ByteBuffer ring, int submitSize, int completeSize)
+        {
+            mRing = ring;
+            mSubmitSize = submitSize;
+            mSubmitMask = submitSize - 1;
+            mCompleteBase = HEADER_SIZE + submitSize;
+            mCompleteMask = completeSize - 1;
+            mCompleteCapacity = completeSize / COMPLETION_SIZE;
+
+            mRing.putInt(OFFSET_SUBMIT_SIZE, submitSize);
+            mRing.putInt(OFFSET_COMPLETE_SIZE, completeSize);
+            mRing.putInt(OFFSET_SUBMIT_WRITE, 0);
+            mRing.putInt(OFFSET_SUBMIT_READ, 0);
+            mRing.putInt(OFFSET_COMPLETE_WRITE, 0);
+            mRing.putInt(OFFSET_COMPLETE_READ, 0);
+            mRing.putInt(OFFSET_VERSION, VERSION);
+            mRing.putInt(OFFSET_MAGIC, MAGIC);
+            SharedRxRing.fence();
+        }
+
+        /**
+         * @return The next submission, or null if there is none or no room yet for its result.
+         * @throws IllegalStateException If the client published more than the area holds, or a
+         * submission longer than an ANT message or than what was published. The ring cannot be
+         * used after that.
+         */
+        Submission poll()
+        {
+            SharedRxRing.fence();
+            int submitWrite = mRing.getInt(OFFSET_SUBMIT_WRITE);
+            if (mSubmitRead == submitWrite) return null;
+
+            // The client can write anything here, so nothing read from the ring is trusted.
+            int published = submitWrite - mSubmitRead;
+            if (published < SUBMISSION_HEADER_SIZE || published > mSubmitSize)
+            {
+                throw new IllegalStateException("Submit write position " + submitWrite
+                        + " is not between " + mSubmitRead + " and a full area");
+            }
+
+            if (!hasCompletionSpace())
+            {
+                mCompletionWaits++;
+                return null;
+            }
+            SharedRxRing.fence();
+
+            SharedRxRing.get(mRing, HEADER_SIZE, mSubmitMask, mSubmitRead, mHeader,
+                    SUBMISSION_HEADER_SIZE);
+            ByteBuffer header = ByteBuffer.wrap(mHeader);
+            int requestId = header.getInt();
+            int length = header.getShort() & 0xFFFF;
+            if (length > AntMessage.MAX_TX_MESSAGE_SIZE
+                    || length > published - SUBMISSION_HEADER_SIZE)
+            {
+                throw new IllegalStateException("Submission " + requestId + " of " + length
+                        + " bytes is too long");
+            }
+
+            byte[] message = new byte[length];
+            SharedRxRing.get(mRing, HEADER_SIZE, mSubmitMask,
+                    mSubmitRead + SUBMISSION_HEADER_SIZE, message, length);
+            mSubmitRead += SUBMISSION_HEADER_SIZE + length;
+            SharedRxRing.fence();
+            mRing.putInt(OFFSET_SUBMIT_READ, mSubmitRead);
+
+            mUnfinished++;
+            mTaken++;
+            return new Submission(requestId, message);
+        }
+
+        /**
+         * @return true if the client has published submissions that {@link #poll()} would take.
+         */
+        boolean hasSubmissions()
+        {
+            SharedRxRing.fence();
+            return mSubmitRead != mRing.getInt(OFFSET_SUBMIT_WRITE) && hasCompletionSpace();
+        }
+
+        /**
+         * @return true if submissions are held back until the client reads more results.
+         */
+        boolean isWaitingForClient()
+        {
+            SharedRxRing.fence();
+            return mSubmitRead != mRing.getInt(OFFSET_SUBMIT_WRITE) && !hasCompletionSpace();
+        }
+
+        /**
+         * @return true if every submission taken, and one more, can be given a result without
+         * overwriting results the client has not read.
+         */
+        private boolean hasCompletionSpace()
+        {
+            int unreadCompletions = (mCompleteWrite - mRing.getInt(OFFSET_COMPLETE_READ))
+                    / COMPLETION_SIZE;
+            // The client is done with every result before its read position.
+            SharedRxRing.fence();
+            return mUnfinished + unreadCompletions < mCompleteCapacity;
+        }
+
+        /**
+         * Writes the result of a submission taken with {@link #poll()}, which the client will not
+         * see before {@link #publish()}.
+         */
+        void complete(int requestId, int result)
+        {
+            ByteBuffer.wrap(mHeader).putInt(requestId).putInt(result);
+            SharedRxRing.put(mRing, mCompleteBase, mCompleteMask, mCompleteWrite, mHeader,
+                    COMPLETION_SIZE);
+            mCompleteWrite += COMPLETION_SIZE;
+            mUnfinished--;
+        }
+
+        /**
+         * Makes the results written so far visible to the client.
+         *
+         * @return true if the client's doorbell must be rung.
+         */
+        boolean publish()
+        {
+            SharedRxRing.fence();
+            mRing.putInt(OFFSET_COMPLETE_WRITE, mCompleteWrite);
+            SharedRxRing.fence();
+
+            if (mCompleteWrite == mDoorbellPosition) return false;
+            if (mRing.getInt(OFFSET_COMPLETE_READ) - mDoorbellPosition < 0) return false;
+
+            mDoorbellPosition = mCompleteWrite;
+            mDoorbells++;
+            return true;
+        }
+
+        void dump(PrintWriter pw)
+        {
+            pw.println("    TX shared ring: taken=" + mTaken + " unfinished=" + mUnfinished
+                    + " doorbells=" + mDoorbells + " completionWaits=" + mCompletionWaits);
+        }
+    }
+
+    /**
+     * The client's side. Only used from one thread.
+     */
+    static final class Client
+    {
+        private final ByteBuffer mRing;
+        private final int mSubmitSize;
+        private final int mSubmitMask;
+        private final int mCompleteBase;
+        private final int mCompleteMask;
+        private final byte[] mHeader = new byte[COMPLETION_SIZE];
+
+        private int mSubmitWrite;
+        private int mCompleteRead;
+        private int mDoorbellPosition;
+
+        /**
+         * @throws IllegalArgumentException If the buffer does not hold the rings.
+         */
+        Client(ByteBuffer ring)
+        {
+            SharedRxRing.fence();
+            if (ring.getInt(OFFSET_MAGIC) != MAGIC || ring.getInt(OFFSET_VERSION) != VERSION)
+            {
+                throw new IllegalArgumentException("Not a TX ring");
+            }
+
+            mRing = ring;
+            mSubmitSize = ring.getInt(OFFSET_SUBMIT_SIZE);
+            mSubmitMask = mSubmitSize - 1;
+            mCompleteBase = HEADER_SIZE + mSubmitSize;
+            mCompleteMask = ring.getInt(OFFSET_COMPLETE_SIZE) - 1;
+            mSubmitWrite = ring.getInt(OFFSET_SUBMIT_WRITE);
+            mCompleteRead = ring.getInt(OFFSET_COMPLETE_READ);
+            mDoorbellPosition = mSubmitWrite;
+        }
+
+        /**
+         * Adds a message to send, which the service will not see before {@link #publish()}.
+         *
+         * @return false if there is no room for it until the service takes more.
+         */
+        boolean submit(int requestId, byte[] message)
+        {
+            int recordSize = SUBMISSION_HEADER_SIZE + message.length;
+            int readPosition = mRing.getInt(OFFSET_SUBMIT_READ);
+            SharedRxRing.fence();
+            if (mSubmitWrite + recordSize - readPosition > mSubmitSize)
+            {
+                return false;
+            }
+
+            ByteBuffer.wrap(mHeader).putInt(requestId).putShort((short) message.length);
+            SharedRxRing.put(mRing, HEADER_SIZE, mSubmitMask, mSubmitWrite, mHeader,
+                    SUBMISSION_HEADER_SIZE);
+            SharedRxRing.put(mRing, HEADER_SIZE, mSubmitMask,
+                    mSubmitWrite + SUBMISSION_HEADER_SIZE, message, message.length);
+            mSubmitWrite += recordSize;
+            return true;
+        }
+
+        /**
+         * Makes the messages submitted so far visible to the service.
+         *
+         * @return true if the service's doorbell, IAntHal2.txRingReady(), must be rung.
+         */
+        boolean publish()
+        {
+            SharedRxRing.fence();
+            mRing.putInt(OFFSET_SUBMIT_WRITE, mSubmitWrite);
+            SharedRxRing.fence();
+
+            if (mSubmitWrite == mDoorbellPosition) return false;
+            if (mRing.getInt(OFFSET_SUBMIT_READ) - mDoorbellPosition < 0) return false;
+
+            mDoorbellPosition = mSubmitWrite;
+            return true;
+        }
+
+        /**
+         * Reads the next result.
+         *
+         * @param completion Receives the request id and result.
+         * @return false if there is no result to read.
+         */
+        boolean pollCompletion(int[] completion)
+        {
+            SharedRxRing.fence();
+            if (mCompleteRead == mRing.getInt(OFFSET_COMPLETE_WRITE)) return false;
+            SharedRxRing.fence();
+
+            SharedRxRing.get(mRing, mCompleteBase, mCompleteMask, mCompleteRead, mHeader,
+                    COMPLETION_SIZE);
+            ByteBuffer record = ByteBuffer.wrap(mHeader);
+            completion[0] = record.getInt();
+            completion[1] = record.getInt();
+            mCompleteRead += COMPLETION_SIZE;
+            SharedRxRing.fence();
+            mRing.putInt(OFFSET_COMPLETE_READ, mCompleteRead);
+            return true;
+        }
+    }
+}
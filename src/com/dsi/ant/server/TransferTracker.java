@@ -0,0 +1,365 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.dsi.ant.core.JAntUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * Follows the acknowledged and burst transfers sent on each ANT channel until the radio reports
+ * how they went, so clients need not match the channel events to their transfers themselves.
+ *
+ * The {@link TxWriter} reports each transfer just before its first message goes to the radio,
+ * so it is followed before the radio can report on it, and takes it back if the message never
+ * gets there. The radio only runs one transfer at a time on a channel, so transfers are matched to the channel
+ * events in the order they were sent: EVENT_TRANSFER_TX_COMPLETED and EVENT_TRANSFER_TX_FAILED
+ * finish the oldest, an error response to a data message rejects the newest, and
+ * EVENT_CHANNEL_CLOSED finishes them all.
+ *
+ * The outcome and its latency, from the request being submitted to the event being received, go
+ * to the client that sent the transfer if it asked for them, and into per-channel counts and
+ * histograms for the dump.
+ */
+final class TransferTracker
+{
+    private static final String TAG = "AntHalTransferTracker";
+    private static final boolean DEBUG = false;
+
+    private static final int CHANNEL_COUNT = AntMessage.CHANNEL_NUMBER_MASK + 1;
+
+    /** Message code of an RF event in a channel response/event message. */
+    private static final byte EVENT_MESSAGE_CODE = 0x01;
+    private static final byte EVENT_TRANSFER_TX_COMPLETED = 0x05;
+    private static final byte EVENT_TRANSFER_TX_FAILED = 0x06;
+    private static final byte EVENT_CHANNEL_CLOSED = 0x07;
+    private static final byte RESPONSE_NO_ERROR = 0x00;
+
+    /** Long enough for the largest burst at the slowest rate. */
+    private static final long TIMEOUT_NANOS = 60 * 1000000000L;
+
+    /** The most transfers followed on a channel, the oldest is given up on past this. */
+    private static final int MAX_OUTSTANDING = 8;
+
+    private static final String[] STATUS_NAMES =
+            {"completed", "failed", "rejected", "closed", "timedOut"};
+
+    private static final class Transfer
+    {
+        private final AntHalClient client;
+        private final int requestId;
+        private final long submittedNanos;
+        private final long sentNanos;
+
+        private Transfer(AntHalClient client, int requestId, long submittedNanos, long sentNanos)
+        {
+            this.client = client;
+            this.requestId = requestId;
+            this.submittedNanos = submittedNanos;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private static final class Channel
+    {
+        private final LinkedList<Transfer> outstanding = new LinkedList<Transfer>();
+        private final long[] outcomes = new long[STATUS_NAMES.length];
+        private final LatencyHistogram latency = new LatencyHistogram("submitted to outcome");
+    }
+
+    /** A finished transfer waiting to be reported, once the lock is no longer held. */
+    private static final class Outcome
+    {
+        private final Transfer transfer;
+        private final int channel;
+        private final int status;
+        private final long latencyNanos;
+
+        private Outcome(Transfer transfer, int channel, int status, long latencyNanos)
+        {
+            this.transfer = transfer;
+            this.channel = channel;
+            this.status = status;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    private final Object mTracker_LOCK = new Object();
+    /** Created once the channel is first used. */
+    private final Channel[] mChannels = new Channel[CHANNEL_COUNT];
+
+    /**
+     * Called on the TX writer thread before the first message of a request is handed to the
+     * transport, as the radio may report on it before the transport returns. Does nothing unless
+     * the message starts an acknowledged or burst transfer.
+     *
+     * @param message The message in the IAntHal ANTTxMessage format.
+     * @param client Where to report the outcome, may be null.
+     * @param queuedNanos How long ago the request was submitted.
+     */
+    void onSending(byte[] message, AntHalClient client, int requestId, long queuedNanos)
+    {
+        int channel = getTransferChannel(message);
+        if (channel < 0) return;
+
+        long now = JAntUtils.elapsedRealtimeNanos();
+        ArrayList<Outcome> outcomes = new ArrayList<Outcome>(1);
+        synchronized (mTracker_LOCK)
+        {
+            Channel state = getChannel(channel);
+            expire(state, channel, now, outcomes);
+            if (state.outstanding.size() >= MAX_OUTSTANDING)
+            {
+                finish(state, channel, state.outstanding.removeFirst(),
+                        AntHalDefine.ANT_HAL_TX_TRANSFER_TIMED_OUT, now, outcomes);
+            }
+            state.outstanding.add(new Transfer(client, requestId, now - queuedNanos, now));
+        }
+        report(outcomes);
+    }
+
+    /**
+     * Called on the TX writer thread when a message passed to
+     * {@link #onSending(byte[], AntHalClient, int, long)} never reached the radio. Forgets the
+     * transfer without reporting it, the client is told the request failed.
+     */
+    void onSendFailed(byte[] message, AntHalClient client, int requestId)
+    {
+        int channel = getTransferChannel(message);
+        if (channel < 0) return;
+
+        synchronized (mTracker_LOCK)
+        {
+            Channel state = mChannels[channel];
+            if (state == null) return;
+
+            ListIterator<Transfer> transfers =
+                    state.outstanding.listIterator(state.outstanding.size());
+            while (transfers.hasPrevious())
+            {
+                Transfer transfer = transfers.previous();
+                if (transfer.client == client && transfer.requestId == requestId)
+                {
+                    transfers.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Called with every received message, on the receive thread.
+     *
+     * @param receivedNanos When the message was received, from
+     * {@link JAntUtils#elapsedRealtimeNanos()}.
+     */
+    void onReceived(byte[] message, long receivedNanos)
+    {
+        if (message.length < AntMessage.OFFSET_DATA + 3) return;
+        if (message[AntMessage.OFFSET_ID] != AntMessage.MESG_RESPONSE_EVENT_ID) return;
+
+        int channel = message[AntMessage.OFFSET_DATA] & AntMessage.CHANNEL_NUMBER_MASK;
+        byte messageId = message[AntMessage.OFFSET_DATA + 1];
+        byte code = message[AntMessage.OFFSET_DATA + 2];
+
+        ArrayList<Outcome> outcomes = null;
+        synchronized (mTracker_LOCK)
+        {
+            Channel state = mChannels[channel];
+            if (state == null || state.outstanding.isEmpty()) return;
+
+            outcomes = new ArrayList<Outcome>(1);
+            if (messageId == EVENT_MESSAGE_CODE)
+            {
+                switch (code)
+                {
+                    case EVENT_TRANSFER_TX_COMPLETED:
+                        finish(state, channel, state.outstanding.removeFirst(),
+                                AntHalDefine.ANT_HAL_TX_TRANSFER_COMPLETED, receivedNanos,
+                                outcomes);
+                        break;
+                    case EVENT_TRANSFER_TX_FAILED:
+                        finish(state, channel, state.outstanding.removeFirst(),
+                                AntHalDefine.ANT_HAL_TX_TRANSFER_FAILED, receivedNanos, outcomes);
+                        break;
+                    case EVENT_CHANNEL_CLOSED:
+                        finishAll(state, channel, AntHalDefine.ANT_HAL_TX_TRANSFER_CHANNEL_CLOSED,
+                                receivedNanos, outcomes);
+                        break;
+                }
+            }
+            else if (isTransferMessage(messageId) && code != RESPONSE_NO_ERROR)
+            {
+                finish(state, channel, state.outstanding.removeLast(),
+                        AntHalDefine.ANT_HAL_TX_TRANSFER_REJECTED, receivedNanos, outcomes);
+            }
+            expire(state, channel, receivedNanos, outcomes);
+        }
+        report(outcomes);
+    }
+
+    /**
+     * Finishes every transfer followed, as the radio has been disabled or reset.
+     */
+    void closeAll()
+    {
+        long now = JAntUtils.elapsedRealtimeNanos();
+        ArrayList<Outcome> outcomes = new ArrayList<Outcome>();
+        synchronized (mTracker_LOCK)
+        {
+            for (int i = 0; i < CHANNEL_COUNT; i++)
+            {
+                if (mChannels[i] == null) continue;
+
+                finishAll(mChannels[i], i, AntHalDefine.ANT_HAL_TX_TRANSFER_CHANNEL_CLOSED, now,
+                        outcomes);
+            }
+        }
+        report(outcomes);
+    }
+
+    /**
+     * @param message The message in the IAntHal ANTTxMessage format.
+     * @return The channel of an acknowledged data message or the first packet of a burst, or -1
+     * for anything else.
+     */
+    private static int getTransferChannel(byte[] message)
+    {
+        if (message.length <= AntMessage.TX_HEADER_SIZE + AntMessage.OFFSET_DATA) return -1;
+
+        byte channelByte = message[AntMessage.TX_HEADER_SIZE + AntMessage.OFFSET_DATA];
+        switch (message[AntMessage.TX_HEADER_SIZE + AntMessage.OFFSET_ID])
+        {
+            case AntMessage.MESG_ACKNOWLEDGED_DATA_ID:
+                return channelByte & AntMessage.CHANNEL_NUMBER_MASK;
+            case AntMessage.MESG_BURST_DATA_ID:
+            case AntMessage.MESG_ADV_BURST_DATA_ID:
+                if ((channelByte & AntMessage.BURST_SEQUENCE_MASK) != 0) return -1;
+                return channelByte & AntMessage.CHANNEL_NUMBER_MASK;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean isTransferMessage(byte messageId)
+    {
+        return messageId == AntMessage.MESG_ACKNOWLEDGED_DATA_ID
+                || messageId == AntMessage.MESG_BURST_DATA_ID
+                || messageId == AntMessage.MESG_ADV_BURST_DATA_ID;
+    }
+
+    /**
+     * Must be called with mTracker_LOCK held.
+     */
+    private Channel getChannel(int channel)
+    {
+        if (mChannels[channel] == null) mChannels[channel] = new Channel();
+        return mChannels[channel];
+    }
+
+    /**
+     * Gives up on the transfers sent too long ago. Must be called with mTracker_LOCK held.
+     */
+    private static void expire(Channel state, int channel, long now, ArrayList<Outcome> outcomes)
+    {
+        while (!state.outstanding.isEmpty()
+                && now - state.outstanding.getFirst().sentNanos > TIMEOUT_NANOS)
+        {
+            finish(state, channel, state.outstanding.removeFirst(),
+                    AntHalDefine.ANT_HAL_TX_TRANSFER_TIMED_OUT, now, outcomes);
+        }
+    }
+
+    /**
+     * Must be called with mTracker_LOCK held.
+     */
+    private static void finishAll(Channel state, int channel, int status, long now,
+            ArrayList<Outcome> outcomes)
+    {
+        while (!state.outstanding.isEmpty())
+        {
+            finish(state, channel, state.outstanding.removeFirst(), status, now, outcomes);
+        }
+    }
+
+    /**
+     * Must be called with mTracker_LOCK held.
+     */
+    private static void finish(Channel state, int channel, Transfer transfer, int status,
+            long now, ArrayList<Outcome> outcomes)
+    {
+        long latencyNanos = now - transfer.submittedNanos;
+        state.outcomes[status]++;
+        state.latency.record(latencyNanos);
+        if (transfer.client != null)
+        {
+            outcomes.add(new Outcome(transfer, channel, status, latencyNanos));
+        }
+    }
+
+    private static void report(ArrayList<Outcome> outcomes)
+    {
+        for (Outcome outcome : outcomes)
+        {
+            try
+            {
+                outcome.transfer.client.reportTransfer(outcome.transfer.requestId,
+                        outcome.channel, outcome.status, outcome.latencyNanos);
+            }
+            catch (RemoteException e)
+            {
+                // Don't do anything as this is a problem in the application
+                if (DEBUG) Log.e(TAG, "ANT HAL Tx transfer callback failure in application", e);
+            }
+        }
+    }
+
+    void dump(PrintWriter pw)
+    {
+        synchronized (mTracker_LOCK)
+        {
+            pw.println("  TX transfers:");
+            for (int i = 0; i < CHANNEL_COUNT; i++)
+            {
+                Channel state = mChannels[i];
+                if (state == null) continue;
+
+                long total = 0;
+                StringBuilder line = new StringBuilder("    channel " + i + ": outstanding="
+                        + state.outstanding.size());
+                for (int status = 0; status < STATUS_NAMES.length; status++)
+                {
+                    line.append(' ').append(STATUS_NAMES[status]).append('=')
+                            .append(state.outcomes[status]);
+                    total += state.outcomes[status];
+                }
+                long completed = state.outcomes[AntHalDefine.ANT_HAL_TX_TRANSFER_COMPLETED];
+                line.append(" successPct=").append((total > 0) ? completed * 100 / total : 0);
+                pw.println(line);
+                state.latency.dump(pw, "      ");
+            }
+        }
+    }
+}
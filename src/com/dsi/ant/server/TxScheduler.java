@@ -0,0 +1,253 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Chooses which waiting TX request the {@link TxWriter} sends next.
+ *
+ * Requests are sorted into lanes by their first message. Data for an ANT channel, and commands
+ * that configure that channel (open, close, assign, set period and so on), go in the channel's
+ * lane. Commands that are not about a single channel go in a priority lane that is always
+ * served first. Channel lanes with a command next are served before channel lanes with data
+ * next, and otherwise the channel lanes take turns, so a long burst on one channel does not hold
+ * up the others.
+ *
+ * Each lane has at most one request being sent at a time, so the messages in a lane reach the
+ * controller in the order they were submitted. A command never overtakes data already waiting
+ * for its own channel.
+ */
+final class TxScheduler<E>
+{
+    private static final int CHANNEL_COUNT = AntMessage.CHANNEL_NUMBER_MASK + 1;
+
+    /** The lane for commands that are not about a single channel. */
+    static final int PRIORITY_LANE = CHANNEL_COUNT;
+
+    /** Enqueue time of an empty lane. */
+    static final long NONE = Long.MIN_VALUE;
+
+    private static final class Queued<E>
+    {
+        private final E element;
+        private final boolean command;
+        private final long enqueueNanos;
+
+        private Queued(E element, boolean command, long enqueueNanos)
+        {
+            this.element = element;
+            this.command = command;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+
+    private static final class Lane<E>
+    {
+        private final LinkedList<Queued<E>> queue = new LinkedList<Queued<E>>();
+        private boolean busy = false;
+
+        private long started = 0;
+        private int maxDepth = 0;
+        private long totalWaitNanos = 0;
+        private long maxWaitNanos = 0;
+    }
+
+    private final Lane<E> mPriorityLane = new Lane<E>();
+    private final Lane<E>[] mChannelLanes;
+
+    /** The channel lane to look at first next time, so every channel gets its turn. */
+    private int mNextChannel = 0;
+    private int mSize = 0;
+
+    @SuppressWarnings("unchecked")
+    TxScheduler()
+    {
+        mChannelLanes = new Lane[CHANNEL_COUNT];
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+        {
+            mChannelLanes[i] = new Lane<E>();
+        }
+    }
+
+    /**
+     * @param message The first message of a request, in the IAntHal ANTTxMessage format.
+     * @return The lane the request belongs in.
+     */
+    static int getLane(byte[] message)
+    {
+        int channel = AntMessage.getTxChannel(message);
+        return (channel < 0) ? PRIORITY_LANE : channel;
+    }
+
+    /**
+     * @param message The first message of a request, in the IAntHal ANTTxMessage format.
+     * @return true if the request is a command rather than channel data.
+     */
+    static boolean isCommand(byte[] message)
+    {
+        return AntMessage.getTxDataChannel(message) < 0;
+    }
+
+    /**
+     * @param lane From {@link #getLane(byte[])}.
+     * @param command From {@link #isCommand(byte[])}.
+     * @param enqueueNanos When the request was submitted, from {@link System#nanoTime()}.
+     */
+    synchronized void add(E element, int lane, boolean command, long enqueueNanos)
+    {
+        Lane<E> target = getLaneById(lane);
+        target.queue.add(new Queued<E>(element, command, enqueueNanos));
+        if (target.queue.size() > target.maxDepth) target.maxDepth = target.queue.size();
+        mSize++;
+    }
+
+    /**
+     * Takes the next request to send. Its lane stays busy until {@link #release(int)}.
+     *
+     * @return The request, or null if every lane is empty or busy.
+     */
+    synchronized E next(long now)
+    {
+        if (!mPriorityLane.busy && !mPriorityLane.queue.isEmpty())
+        {
+            return take(mPriorityLane, now);
+        }
+
+        for (Lane<E> lane : mChannelLanes)
+        {
+            if (!lane.busy && !lane.queue.isEmpty() && lane.queue.getFirst().command)
+            {
+                return take(lane, now);
+            }
+        }
+
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+        {
+            int channel = (mNextChannel + i) % CHANNEL_COUNT;
+            Lane<E> lane = mChannelLanes[channel];
+            if (!lane.busy && !lane.queue.isEmpty())
+            {
+                mNextChannel = (channel + 1) % CHANNEL_COUNT;
+                return take(lane, now);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Must be called with the scheduler lock held.
+     */
+    private E take(Lane<E> lane, long now)
+    {
+        Queued<E> queued = lane.queue.removeFirst();
+        mSize--;
+        lane.busy = true;
+        lane.started++;
+
+        long wait = now - queued.enqueueNanos;
+        lane.totalWaitNanos += wait;
+        if (wait > lane.maxWaitNanos) lane.maxWaitNanos = wait;
+
+        return queued.element;
+    }
+
+    /**
+     * The request taken from a lane has finished, the next one in the lane may be sent.
+     */
+    synchronized void release(int lane)
+    {
+        getLaneById(lane).busy = false;
+    }
+
+    /**
+     * @return The number of requests waiting, not counting ones already taken.
+     */
+    synchronized int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * Copies when the longest waiting request of each channel lane was submitted, or
+     * {@link #NONE} for a lane with nothing waiting.
+     *
+     * @param oldest Indexed by lane, at least {@link #PRIORITY_LANE} long.
+     */
+    synchronized void getOldestEnqueueNanos(AtomicLongArray oldest)
+    {
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+        {
+            LinkedList<Queued<E>> queue = mChannelLanes[i].queue;
+            oldest.set(i, queue.isEmpty() ? NONE : queue.getFirst().enqueueNanos);
+        }
+    }
+
+    /**
+     * Removes every waiting request and frees every lane.
+     */
+    synchronized void drainTo(Collection<? super E> elements)
+    {
+        drainLane(mPriorityLane, elements);
+        for (Lane<E> lane : mChannelLanes)
+        {
+            drainLane(lane, elements);
+        }
+        mSize = 0;
+    }
+
+    private static <E> void drainLane(Lane<E> lane, Collection<? super E> elements)
+    {
+        for (Queued<E> queued : lane.queue)
+        {
+            elements.add(queued.element);
+        }
+        lane.queue.clear();
+        lane.busy = false;
+    }
+
+    private Lane<E> getLaneById(int lane)
+    {
+        return (lane == PRIORITY_LANE) ? mPriorityLane : mChannelLanes[lane];
+    }
+
+    synchronized void dump(PrintWriter pw)
+    {
+        dumpLane(pw, "priority", mPriorityLane);
+        for (int i = 0; i < CHANNEL_COUNT; i++)
+        {
+            if (mChannelLanes[i].started > 0 || !mChannelLanes[i].queue.isEmpty())
+            {
+                dumpLane(pw, "channel " + i, mChannelLanes[i]);
+            }
+        }
+    }
+
+    private static void dumpLane(PrintWriter pw, String name, Lane<?> lane)
+    {
+        long averageWaitMicros = (lane.started > 0) ? lane.totalWaitNanos / lane.started / 1000 : 0;
+        pw.println("    " + name + ": depth=" + lane.queue.size() + " maxDepth=" + lane.maxDepth
+                + " busy=" + lane.busy + " started=" + lane.started
+                + " avgWaitUs=" + averageWaitMicros + " maxWaitUs=" + (lane.maxWaitNanos / 1000));
+    }
+}
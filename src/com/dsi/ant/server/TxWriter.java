@@ -0,0 +1,839 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends every ANT message on a single writer thread, and reports the result of each request to
+ * whoever submitted it.
+ *
+ * Binder threads only put requests on a lock-free queue. The writer thread owns the whole
+ * send/complete handshake with the transport: it keeps up to
+ * {@link Sender#getMaxOutstanding()} messages outstanding, hears about their completion through
+ * a second lock-free queue, and holds back retries itself instead of sleeping.
+ *
+ * A request may hold several messages (for example the packets of a burst). They are sent one
+ * after another, the request stops at the first message that fails, and a single result is
+ * reported. Which request goes next is up to the {@link TxScheduler}: commands that are not
+ * about a single channel first, then the ANT channels in turn, each in the order its requests
+ * were submitted.
+ *
+ * Clients may also submit through a {@link SharedTxRing}. The writer thread takes their
+ * messages straight from the ring into the scheduler, and writes the results back into it.
+ *
+ * New requests are turned away with {@link AntHalDefine#ANT_HAL_RESULT_FAIL_RESOURCE_IN_USE}
+ * instead of being queued once too many are unfinished, or once channel data has been waiting
+ * too long, so that clients can back off instead of piling up latency in the service.
+ * Asynchronous requests are also turned away while the queue is full, as their oneway binder
+ * calls are delivered one at a time for every client; only {@link #transmit(byte[][])} waits.
+ */
+final class TxWriter
+{
+    private static final String TAG = "AntHalTxWriter";
+    private static final boolean DEBUG = false;
+
+    /** How long a blocking submitter waits before trying again when the queue is full. */
+    private static final long QUEUE_FULL_BACKOFF_NANOS = 100000;
+
+    /**
+     * How long the writer thread waits before looking at a shared ring again when its client has
+     * not read enough results to make room for more.
+     */
+    private static final long RING_FULL_RETRY_NANOS = 5000000;
+
+    /**
+     * Performs the actual sends for the writer thread.
+     */
+    interface Sender
+    {
+        /**
+         * Starts sending a message. The callback must be called exactly once, from any thread,
+         * possibly before this returns.
+         */
+        void send(byte[] message, SendCallback callback);
+
+        /**
+         * @return How many messages may be waiting on their completion at once.
+         */
+        int getMaxOutstanding();
+
+        /**
+         * @return How many times a message is sent before a retryable failure is final.
+         */
+        int getMaxAttempts();
+
+        /**
+         * @return How long to hold back the first attempt at a message.
+         */
+        long getSendDelayMicros();
+
+        /**
+         * @return How long to hold back a message after a retryable failure.
+         */
+        long getRetryDelayMicros();
+    }
+
+    interface SendCallback
+    {
+        /**
+         * @param result An {@link AntHalDefine} result.
+         * @param retry If the failure is worth sending the message again for.
+         */
+        void onSent(int result, boolean retry);
+    }
+
+    /**
+     * A client's shared submission ring. Only used by the writer thread once added.
+     */
+    private static final class RingSource
+    {
+        private final SharedTxRing.Server ring;
+        private final AntHalClient client;
+        /** Results have been written since the last publish. */
+        private boolean completed = false;
+
+        private RingSource(SharedTxRing.Server ring, AntHalClient client)
+        {
+            this.ring = ring;
+            this.client = client;
+        }
+    }
+
+    private static final class TxRequest
+    {
+        private final int requestId;
+        private final byte[][] messages;
+        private final AntHalClient client;
+        /** Where to write the result instead of telling the client, if submitted through one. */
+        private final RingSource ring;
+
+        /** The {@link TxScheduler} lane, from the first message. */
+        private final int lane;
+        /** Whether the first message is a command rather than channel data. */
+        private final boolean command;
+        private final long enqueueNanos = System.nanoTime();
+        /** Set once the request counts towards the backlog. */
+        private boolean admitted = false;
+
+        // Only used by the writer thread.
+        private int index = 0;
+        private int attemptsLeft;
+        private long notBefore;
+        /** Set once the first message has been given to the {@link TransferTracker}. */
+        private boolean tracked = false;
+
+        private boolean mDone = false;
+        private int mResult;
+
+        private TxRequest(int requestId, byte[][] messages, AntHalClient client)
+        {
+            this(requestId, messages, client, null);
+        }
+
+        private TxRequest(int requestId, byte[][] messages, AntHalClient client, RingSource ring)
+        {
+            this.requestId = requestId;
+            this.messages = messages;
+            this.client = client;
+            this.ring = ring;
+            this.lane = TxScheduler.getLane(messages[0]);
+            this.command = TxScheduler.isCommand(messages[0]);
+        }
+
+        /**
+         * @return false if the request already had a result.
+         */
+        private synchronized boolean finish(int result)
+        {
+            if (mDone) return false;
+            mDone = true;
+            mResult = result;
+            notifyAll();
+            return true;
+        }
+
+        private synchronized int await() throws InterruptedException
+        {
+            while (!mDone)
+            {
+                wait();
+            }
+            return mResult;
+        }
+    }
+
+    private static final class Completion
+    {
+        private final TxRequest request;
+        private final int result;
+        private final boolean retry;
+
+        private Completion(TxRequest request, int result, boolean retry)
+        {
+            this.request = request;
+            this.result = result;
+            this.retry = retry;
+        }
+    }
+
+    private final Sender mSender;
+    private final TransferTracker mTransferTracker;
+    private final MpscQueue<TxRequest> mQueue;
+    private final int mQueueSize;
+    /**
+     * Requests submitted and not yet taken out of the scheduler to be sent, from the queue and
+     * the shared rings alike. Kept within mQueueSize, so submitters wait for space however the
+     * requests are split between the queue and the scheduler.
+     */
+    private final AtomicInteger mWaiting = new AtomicInteger();
+    private final int mMaxBacklog;
+    private final long mMaxDelayNanos;
+    private final ConcurrentLinkedQueue<Completion> mCompletions =
+            new ConcurrentLinkedQueue<Completion>();
+    private final CopyOnWriteArrayList<RingSource> mRings = new CopyOnWriteArrayList<RingSource>();
+    /** Held while replacing a client's ring, the writer thread reads the list without it. */
+    private final Object mRings_LOCK = new Object();
+
+    private volatile Thread mThread;
+    private volatile boolean mStopped = false;
+    private final AtomicBoolean mParked = new AtomicBoolean();
+
+    // Only used by the writer thread.
+    private final TxScheduler<TxRequest> mScheduler = new TxScheduler<TxRequest>();
+    private final LinkedList<TxRequest> mActive = new LinkedList<TxRequest>();
+    private final HashSet<TxRequest> mSending = new HashSet<TxRequest>();
+    private int mMaxOutstanding;
+    private int mMaxAttempts;
+
+    /** Requests admitted and not yet finished. */
+    private final AtomicInteger mBacklog = new AtomicInteger();
+    /**
+     * Published by the writer thread for admission checks on the submitting threads: when the
+     * oldest waiting request of each channel lane was submitted, or {@link TxScheduler#NONE}.
+     */
+    private final AtomicLongArray mOldestNanos = new AtomicLongArray(TxScheduler.PRIORITY_LANE);
+
+    private volatile int mOutstanding = 0;
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mQueueFullWaits = new AtomicLong();
+    private final AtomicLong mRejectedBacklog = new AtomicLong();
+    private final AtomicLong mRejectedDelay = new AtomicLong();
+    private final AtomicLong mRejectedQueueFull = new AtomicLong();
+    private volatile long mMessagesSent = 0;
+    private volatile long mRetries = 0;
+    private volatile long mRingSubmitted = 0;
+
+    /**
+     * @param transferTracker Told about each acknowledged and burst transfer sent, may be null.
+     * @param queueSize How many requests may wait to be sent at once. Submitters wait for space
+     * once it is full.
+     * @param maxBacklog How many requests may be unfinished before new ones are rejected, 0 for
+     * no limit.
+     * @param maxDelayMillis How long channel data may have been waiting before new channel data
+     * is rejected, 0 for no limit.
+     */
+    TxWriter(Sender sender, TransferTracker transferTracker, int queueSize, int maxBacklog,
+            int maxDelayMillis)
+    {
+        mSender = sender;
+        mTransferTracker = transferTracker;
+        mQueueSize = Math.max(1, queueSize);
+        mQueue = new MpscQueue<TxRequest>(mQueueSize);
+        mMaxBacklog = Math.max(0, maxBacklog);
+        mMaxDelayNanos = Math.max(0, maxDelayMillis) * 1000000L;
+        for (int i = 0; i < mOldestNanos.length(); i++)
+        {
+            mOldestNanos.set(i, TxScheduler.NONE);
+        }
+    }
+
+    synchronized void start()
+    {
+        if (mThread != null) return;
+
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops the writer thread. Anything still queued or outstanding is failed with
+     * {@link AntHalDefine#ANT_HAL_RESULT_FAIL_NOT_ENABLED}.
+     */
+    synchronized void stop()
+    {
+        if (mThread == null) return;
+
+        mStopped = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Sends messages one after another as a single request, and waits for the result.
+     *
+     * @param messages The messages in the IAntHal ANTTxMessage format, in sending order.
+     * @return The result of the last message sent.
+     */
+    int transmit(byte[][] messages)
+    {
+        TxRequest request = new TxRequest(0, messages, null);
+        enqueue(request, true);
+        try
+        {
+            return request.await();
+        }
+        catch (InterruptedException e)
+        {
+            Log.e(TAG, "ANT Tx interrupted while waiting for the result.");
+            return AntHalDefine.ANT_HAL_RESULT_FAIL_UNKNOWN;
+        }
+    }
+
+    /**
+     * Queues a message to be sent and returns immediately. If the queue is full the result is
+     * {@link AntHalDefine#ANT_HAL_RESULT_FAIL_RESOURCE_IN_USE} straight away.
+     *
+     * @param requestId The id reported back with the result.
+     * @param message The message in the IAntHal ANTTxMessage format.
+     * @param client Where to report the result, may be null.
+     */
+    void submit(int requestId, byte[] message, AntHalClient client)
+    {
+        submit(requestId, new byte[][] {message}, client);
+    }
+
+    /**
+     * Queues several messages to be sent back to back as one request and returns immediately. If
+     * the queue is full the result is {@link AntHalDefine#ANT_HAL_RESULT_FAIL_RESOURCE_IN_USE}
+     * straight away.
+     *
+     * @param requestId The id reported back with the result.
+     * @param messages The messages in the IAntHal ANTTxMessage format, in sending order.
+     * @param client Where to report the result, may be null.
+     */
+    void submit(int requestId, byte[][] messages, AntHalClient client)
+    {
+        enqueue(new TxRequest(requestId, messages, client), false);
+    }
+
+    /**
+     * Takes messages from a client's shared ring from now on, until the client is released or
+     * opens another, which replaces it.
+     */
+    void addRing(SharedTxRing.Server ring, AntHalClient client)
+    {
+        synchronized (mRings_LOCK)
+        {
+            for (RingSource source : mRings)
+            {
+                if (source.client == client) mRings.remove(source);
+            }
+            mRings.add(new RingSource(ring, client));
+        }
+        wakeWriter();
+    }
+
+    /**
+     * Has the writer thread look for new submissions in the shared rings.
+     */
+    void wake()
+    {
+        wakeWriter();
+    }
+
+    /**
+     * @param wait Whether to wait for space if the queue is full, instead of rejecting the
+     * request.
+     */
+    private void enqueue(TxRequest request, boolean wait)
+    {
+        mSubmitted.incrementAndGet();
+
+        if (!admit(request))
+        {
+            if (DEBUG) Log.w(TAG, "Tx request rejected, backlog=" + mBacklog.get());
+            complete(request, AntHalDefine.ANT_HAL_RESULT_FAIL_RESOURCE_IN_USE);
+            return;
+        }
+
+        if (!reserveSpace())
+        {
+            if (!wait)
+            {
+                mRejectedQueueFull.incrementAndGet();
+                complete(request, AntHalDefine.ANT_HAL_RESULT_FAIL_RESOURCE_IN_USE);
+                return;
+            }
+
+            mQueueFullWaits.incrementAndGet();
+            do
+            {
+                if (mStopped)
+                {
+                    complete(request, AntHalDefine.ANT_HAL_RESULT_FAIL_NOT_ENABLED);
+                    return;
+                }
+                LockSupport.parkNanos(QUEUE_FULL_BACKOFF_NANOS);
+            } while (!reserveSpace());
+        }
+
+        // Always fits, the queue holds at least as many as may be waiting.
+        mQueue.offer(request);
+        wakeWriter();
+
+        // The writer thread may already have cleaned up and gone.
+        if (mStopped)
+        {
+            complete(request, AntHalDefine.ANT_HAL_RESULT_FAIL_NOT_ENABLED);
+        }
+    }
+
+    /**
+     * Counts a request as waiting to be sent if there is space for it.
+     *
+     * @return false if as many requests as allowed are already waiting.
+     */
+    private boolean reserveSpace()
+    {
+        while (true)
+        {
+            int waiting = mWaiting.get();
+            if (waiting >= mQueueSize) return false;
+            if (mWaiting.compareAndSet(waiting, waiting + 1)) return true;
+        }
+    }
+
+    /**
+     * Counts the request towards the backlog if it is within the limits.
+     *
+     * @return false if the request must be rejected.
+     */
+    private boolean admit(TxRequest request)
+    {
+        // Commands skip the delay check, they are sent ahead of other channels' data. Data is
+        // only held back by its own channel's lane, a busy channel does not stall idle ones.
+        if (mMaxDelayNanos > 0 && !request.command && request.lane != TxScheduler.PRIORITY_LANE)
+        {
+            long oldest = mOldestNanos.get(request.lane);
+            if (oldest != TxScheduler.NONE && request.enqueueNanos - oldest > mMaxDelayNanos)
+            {
+                mRejectedDelay.incrementAndGet();
+                return false;
+            }
+        }
+
+        while (true)
+        {
+            int backlog = mBacklog.get();
+            if (mMaxBacklog > 0 && backlog >= mMaxBacklog)
+            {
+                mRejectedBacklog.incrementAndGet();
+                return false;
+            }
+            if (mBacklog.compareAndSet(backlog, backlog + 1))
+            {
+                request.admitted = true;
+                return true;
+            }
+        }
+    }
+
+    private void wakeWriter()
+    {
+        Thread thread = mThread;
+        if (thread != null && mParked.compareAndSet(true, false))
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // ------------------------------------------------------------------------------ Writer thread
+
+    private void writeLoop()
+    {
+        if (DEBUG) Log.d(TAG, "Writer thread started");
+
+        mMaxOutstanding = Math.max(1, mSender.getMaxOutstanding());
+        mMaxAttempts = Math.max(1, mSender.getMaxAttempts());
+
+        while (!mStopped)
+        {
+            TxRequest request;
+            while ((request = mQueue.poll()) != null)
+            {
+                mScheduler.add(request, request.lane, request.command, request.enqueueNanos);
+            }
+
+            takeFromRings();
+
+            Completion completion;
+            while ((completion = mCompletions.poll()) != null)
+            {
+                onCompletion(completion);
+            }
+
+            long waitNanos = sendReady();
+            if (publishRings()) waitNanos = Math.min(waitNanos, RING_FULL_RETRY_NANOS);
+
+            mScheduler.getOldestEnqueueNanos(mOldestNanos);
+
+            mParked.set(true);
+            if (mQueue.size() > 0 || !mCompletions.isEmpty() || mStopped
+                    || (mWaiting.get() < mQueueSize && ringsWaiting()))
+            {
+                mParked.set(false);
+                continue;
+            }
+
+            if (waitNanos == Long.MAX_VALUE)
+            {
+                LockSupport.park(this);
+            }
+            else
+            {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+            mParked.set(false);
+        }
+
+        failAll();
+
+        if (DEBUG) Log.d(TAG, "Writer thread stopped");
+    }
+
+    /**
+     * Moves new submissions from the shared rings into the scheduler, as long as there is space
+     * for them. The rest stay in the rings until there is.
+     */
+    private void takeFromRings()
+    {
+        for (RingSource source : mRings)
+        {
+            if (!source.client.isActive())
+            {
+                mRings.remove(source);
+                continue;
+            }
+
+            while (reserveSpace())
+            {
+                SharedTxRing.Submission submission;
+                try
+                {
+                    submission = source.ring.poll();
+                }
+                catch (IllegalStateException e)
+                {
+                    // The client broke the ring, it only gets to stop using it.
+                    Log.e(TAG, "Closing corrupt TX shared ring", e);
+                    mWaiting.decrementAndGet();
+                    mRings.remove(source);
+                    break;
+                }
+
+                if (submission == null)
+                {
+                    mWaiting.decrementAndGet();
+                    break;
+                }
+
+                mSubmitted.incrementAndGet();
+                mRingSubmitted++;
+
+                if (submission.message.length == 0)
+                {
+                    mWaiting.decrementAndGet();
+                    source.ring.complete(submission.requestId,
+                            AntHalDefine.ANT_HAL_RESULT_FAIL_INVALID_REQUEST);
+                    source.completed = true;
+                    continue;
+                }
+
+                TxRequest request = new TxRequest(submission.requestId,
+                        new byte[][] {submission.message}, null, source);
+                if (!admit(request))
+                {
+                    mWaiting.decrementAndGet();
+                    complete(request, AntHalDefine.ANT_HAL_RESULT_FAIL_RESOURCE_IN_USE);
+                    continue;
+                }
+                mScheduler.add(request, request.lane, request.command, request.enqueueNanos);
+            }
+        }
+    }
+
+    /**
+     * Makes the results written to the shared rings visible, ringing the doorbells needed.
+     *
+     * @return true if a ring has submissions waiting for its client to read results.
+     */
+    private boolean publishRings()
+    {
+        boolean waiting = false;
+        for (RingSource source : mRings)
+        {
+            if (source.ring.isWaitingForClient()) waiting = true;
+            if (!source.completed) continue;
+
+            source.completed = false;
+            if (!source.ring.publish()) continue;
+
+            try
+            {
+                source.client.txRingComplete();
+            }
+            catch (RemoteException e)
+            {
+                // Don't do anything as this is a problem in the application
+                if (DEBUG) Log.e(TAG, "ANT HAL Tx ring callback failure in application", e);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * @return true if a shared ring has submissions the writer thread has not taken.
+     */
+    private boolean ringsWaiting()
+    {
+        for (RingSource source : mRings)
+        {
+            if (source.ring.hasSubmissions()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sends as many messages as the sender allows.
+     *
+     * @return How long until a held back message is due, or Long.MAX_VALUE if there is nothing
+     * to wake up for other than new requests or completions.
+     */
+    private long sendReady()
+    {
+        while (mOutstanding < mMaxOutstanding)
+        {
+            long now = System.nanoTime();
+            long waitNanos = Long.MAX_VALUE;
+
+            // Requests already under way go first, so their next message or retry is not stuck
+            // behind newer requests.
+            TxRequest next = null;
+            for (TxRequest active : mActive)
+            {
+                long due = active.notBefore - now;
+                if (due <= 0)
+                {
+                    next = active;
+                    break;
+                }
+                waitNanos = Math.min(waitNanos, due);
+            }
+
+            if (next != null)
+            {
+                mActive.remove(next);
+                send(next);
+                continue;
+            }
+
+            next = mScheduler.next(now);
+            if (next == null) return waitNanos;
+            mWaiting.decrementAndGet();
+
+            next.attemptsLeft = mMaxAttempts;
+            if (!holdBack(next, mSender.getSendDelayMicros()))
+            {
+                send(next);
+            }
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the request was set aside to be sent later.
+     */
+    private boolean holdBack(TxRequest request, long delayMicros)
+    {
+        if (delayMicros <= 0) return false;
+
+        request.notBefore = System.nanoTime() + delayMicros * 1000;
+        mActive.add(request);
+        return true;
+    }
+
+    private void send(final TxRequest request)
+    {
+        mOutstanding++;
+        mMessagesSent++;
+        mSending.add(request);
+
+        // Followed before it is sent, the radio may report on it before the send completes.
+        if (request.index == 0 && !request.tracked && mTransferTracker != null)
+        {
+            request.tracked = true;
+            mTransferTracker.onSending(request.messages[0], request.client, request.requestId,
+                    System.nanoTime() - request.enqueueNanos);
+        }
+
+        mSender.send(request.messages[request.index], new SendCallback() {
+            public void onSent(int result, boolean retry) {
+                mCompletions.add(new Completion(request, result, retry));
+                wakeWriter();
+            }
+        });
+    }
+
+    private void onCompletion(Completion completion)
+    {
+        TxRequest request = completion.request;
+        mOutstanding--;
+        if (!mSending.remove(request)) return;
+
+        if (completion.result == AntHalDefine.ANT_HAL_RESULT_SUCCESS)
+        {
+            if (++request.index < request.messages.length)
+            {
+                request.attemptsLeft = mMaxAttempts;
+                if (!holdBack(request, mSender.getSendDelayMicros()))
+                {
+                    request.notBefore = System.nanoTime();
+                    mActive.add(request);
+                }
+                return;
+            }
+        }
+        else if (completion.retry && --request.attemptsLeft > 0)
+        {
+            mRetries++;
+            if (!holdBack(request, mSender.getRetryDelayMicros()))
+            {
+                request.notBefore = System.nanoTime();
+                mActive.add(request);
+            }
+            return;
+        }
+
+        if (DEBUG && completion.result != AntHalDefine.ANT_HAL_RESULT_SUCCESS)
+        {
+            Log.w(TAG, "Tx request failed: " + AntHalDefine.getAntHalResultString(completion.result));
+        }
+        if (request.tracked && request.index == 0)
+        {
+            mTransferTracker.onSendFailed(request.messages[0], request.client, request.requestId);
+        }
+        finish(request, completion.result);
+    }
+
+    private void finish(TxRequest request, int result)
+    {
+        mScheduler.release(request.lane);
+        complete(request, result);
+    }
+
+    private void failAll()
+    {
+        LinkedList<TxRequest> requests = new LinkedList<TxRequest>();
+        requests.addAll(mSending);
+        requests.addAll(mActive);
+        mScheduler.drainTo(requests);
+        TxRequest request;
+        while ((request = mQueue.poll()) != null)
+        {
+            requests.add(request);
+        }
+
+        mSending.clear();
+        mActive.clear();
+
+        for (TxRequest failed : requests)
+        {
+            complete(failed, AntHalDefine.ANT_HAL_RESULT_FAIL_NOT_ENABLED);
+        }
+        publishRings();
+    }
+
+    // ------------------------------------------------------------------------------------------
+
+    private void complete(TxRequest request, int result)
+    {
+        if (!request.finish(result)) return;
+
+        if (request.admitted) mBacklog.decrementAndGet();
+        mCompleted.incrementAndGet();
+
+        if (request.ring != null)
+        {
+            // Only ever on the writer thread, the ring's only writer.
+            request.ring.ring.complete(request.requestId, result);
+            request.ring.completed = true;
+            return;
+        }
+
+        if (request.client == null) return;
+
+        try
+        {
+            request.client.txComplete(request.requestId, result);
+        }
+        catch (RemoteException e)
+        {
+            // Don't do anything as this is a problem in the application
+            if (DEBUG) Log.e(TAG, "ANT HAL Tx complete callback failure in application", e);
+        }
+    }
+
+    void dump(PrintWriter pw)
+    {
+        pw.println("  TX writer: waiting=" + mWaiting.get() + "/" + mQueueSize
+                + " queued=" + mQueue.size() + " scheduled=" + mScheduler.size()
+                + " outstanding=" + mOutstanding + " submitted=" + mSubmitted.get()
+                + " completed=" + mCompleted.get() + " queueFullWaits=" + mQueueFullWaits.get());
+        pw.println("    messagesSent=" + mMessagesSent + " retries=" + mRetries
+                + " rings=" + mRings.size() + " ringSubmitted=" + mRingSubmitted);
+        pw.println("    backlog=" + mBacklog.get() + "/" + mMaxBacklog
+                + " maxDelayMs=" + (mMaxDelayNanos / 1000000)
+                + " rejectedBacklog=" + mRejectedBacklog.get()
+                + " rejectedDelay=" + mRejectedDelay.get()
+                + " rejectedQueueFull=" + mRejectedQueueFull.get());
+        mScheduler.dump(pw);
+        for (RingSource source : mRings)
+        {
+            source.ring.dump(pw);
+        }
+    }
+}
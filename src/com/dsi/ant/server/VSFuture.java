@@ -0,0 +1,204 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an operation on the {@link VendorSpecificStateMachine}, completed from the state
+ * machine's thread. Listeners can be added to carry on once it is done, without a thread parked
+ * waiting for it.
+ *
+ * Every operation is bounded by the state machine's own timeouts, so a future is always
+ * completed in the end. A failure is one of the
+ * {@link VendorSpecificStateMachine.CommandCompleteCallback} FAILURE_X values.
+ */
+public final class VSFuture<T> implements Future<T>
+{
+    public interface Listener
+    {
+        /**
+         * Called once the future is done, on the thread that completed it, or straight away on
+         * the thread adding the listener if it already was.
+         */
+        public void onDone(VSFuture<?> future);
+    }
+
+    private final Object mDone_LOCK = new Object();
+    private boolean mDone = false;
+    private T mValue = null;
+    private int mFailure = 0;
+    /** null once done. */
+    private LinkedList<Listener> mListeners = new LinkedList<Listener>();
+
+    /**
+     * @return false if the future was already done.
+     */
+    boolean complete(T value)
+    {
+        return finish(value, 0);
+    }
+
+    /**
+     * @param reason One of the FAILURE_X values.
+     * @return false if the future was already done.
+     */
+    boolean fail(int reason)
+    {
+        return finish(null, reason);
+    }
+
+    private boolean finish(T value, int failure)
+    {
+        LinkedList<Listener> listeners;
+        synchronized (mDone_LOCK)
+        {
+            if (mDone) return false;
+
+            mDone = true;
+            mValue = value;
+            mFailure = failure;
+            listeners = mListeners;
+            mListeners = null;
+            mDone_LOCK.notifyAll();
+        }
+
+        for (Listener listener : listeners)
+        {
+            listener.onDone(this);
+        }
+        return true;
+    }
+
+    public void addListener(Listener listener)
+    {
+        synchronized (mDone_LOCK)
+        {
+            if (!mDone)
+            {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onDone(this);
+    }
+
+    /**
+     * @return true if done without a failure.
+     */
+    public boolean isSuccess()
+    {
+        synchronized (mDone_LOCK)
+        {
+            return mDone && mFailure == 0;
+        }
+    }
+
+    /**
+     * @return The FAILURE_X value the operation failed with, or 0 if it has not failed.
+     */
+    public int getFailure()
+    {
+        synchronized (mDone_LOCK)
+        {
+            return mFailure;
+        }
+    }
+
+    /**
+     * @return The result without waiting, null if not done or failed.
+     */
+    public T getNow()
+    {
+        synchronized (mDone_LOCK)
+        {
+            return mValue;
+        }
+    }
+
+    /**
+     * Operations already handed to the state machine can not be taken back.
+     *
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        synchronized (mDone_LOCK)
+        {
+            return mDone;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        synchronized (mDone_LOCK)
+        {
+            while (!mDone)
+            {
+                mDone_LOCK.wait();
+            }
+            return getResultLocked();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mDone_LOCK)
+        {
+            while (!mDone)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) throw new TimeoutException();
+
+                TimeUnit.NANOSECONDS.timedWait(mDone_LOCK, remaining);
+            }
+            return getResultLocked();
+        }
+    }
+
+    private T getResultLocked() throws ExecutionException
+    {
+        if (mFailure != 0)
+        {
+            throw new ExecutionException("Vendor specific operation failed: " + mFailure, null);
+        }
+        return mValue;
+    }
+}
@@ -4,11 +4,16 @@ import android.bluetooth.BluetoothVS;
 import android.bluetooth.BluetoothVS.BluetoothVSCallbacks;
 import android.content.Context;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
+import com.dsi.ant.core.JAntUtils;
 
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -17,7 +22,18 @@ import java.util.concurrent.atomic.AtomicInteger;
  *      {@link IdleState} : Interface is down
  *      {@link WaitingForInterface} : Waiting for the interface to initialize
  *      {@link ReadyState} : Interface is ready to send Vendor Specific Commands
- *      {@link WaitingForCommandCompleteState} : Interface is waiting for a Command Complete
+ *      {@link WaitingForCommandCompleteState} : Interface is waiting for one or more Command Completes
+ *
+ * Up to maxCommandsInFlight commands (see {@link #make(Context, BTVSCallbacks, int)}) may be
+ * outstanding at once. Command completes are matched to outstanding commands by opcode, in the
+ * order the commands were sent.
+ *
+ * Preparing and releasing the interface, and sending a command, each return a {@link VSFuture}
+ * completed once the operation is done, so callers can carry on without waiting on a lock.
+ *
+ * While the interface is ready, received events skip the state machine and are delivered by an
+ * {@link HciRxDispatcher} on its own thread. Either way each event is stamped with the time it
+ * came from the bluetooth stack, before any queueing.
  *
  * Expected Behaviour of Vendor Specific State Machine
  *
@@ -74,6 +90,9 @@ public class VendorSpecificStateMachine extends StateMachine
     private static final int PREPARE_INTERFACE_TIMEOUT = 200;
     private static final int COMMAND_COMPLETE_TIMEOUT = 201;
 
+//--------------------------------------------- Defaults ------------------------------------------
+    private static final int DEFAULT_RX_RING_SIZE = 256;
+
 //--------------------------------------------- States --------------------------------------------
     private final IdleState mIdleState = new IdleState();
     private final WaitingForInterfaceState mWaitingForInterfaceState = new WaitingForInterfaceState();
@@ -82,6 +101,12 @@ public class VendorSpecificStateMachine extends StateMachine
 
 //--------------------------------------- Private Variables ---------------------------------------
     private final Context mContext;
+    private final int mMaxCommandsInFlight;
+    private final HciRxDispatcher mRxDispatcher;
+
+    // Only used on the state machine's thread.
+    private final LinkedList<VSFuture<Void>> mPendingPrepares = new LinkedList<VSFuture<Void>>();
+    private final LinkedList<VSFuture<Void>> mPendingReleases = new LinkedList<VSFuture<Void>>();
 
 //---------------------------------- Callbacks up to AntService -----------------------------------
     private final BTVSCallbacks mStateCallbacks;
@@ -123,40 +148,79 @@ public class VendorSpecificStateMachine extends StateMachine
         @Override
         public void onEventReceived(byte[] params)
         {
+            ReceivedEvent event = new ReceivedEvent(params, JAntUtils.elapsedRealtimeNanos());
+            if (mRxDispatcher.offer(mInstanceNum, event)) return;
+
             Message msg = Message.obtain(getHandler(), EVENT_RECEIVED);
             msg.arg2 = mInstanceNum;
-            msg.obj = params;
+            msg.obj = event;
             sendMessage(msg);
         }
     };
 
 //-------------------------------- Functions called by AntService ---------------------------------
     /**
-     * Create an instance of the state machine.
+     * Create an instance of the state machine that allows a single outstanding command.
      * @param context
      * @param callback
      * @return The one and only instance of the Vendor Specific State Machine
      */
     public static VendorSpecificStateMachine make(Context context, BTVSCallbacks callback)
+    {
+        return make(context, callback, 1);
+    }
+
+    /**
+     * Create an instance of the state machine.
+     * @param context
+     * @param callback
+     * @param maxCommandsInFlight The number of commands that may be waiting for a command complete
+     * at the same time. Further commands are failed until a command complete is received.
+     * @return The one and only instance of the Vendor Specific State Machine
+     */
+    public static VendorSpecificStateMachine make(Context context, BTVSCallbacks callback,
+        int maxCommandsInFlight)
+    {
+        return make(context, callback, maxCommandsInFlight, DEFAULT_RX_RING_SIZE);
+    }
+
+    /**
+     * Create an instance of the state machine.
+     * @param context
+     * @param callback
+     * @param maxCommandsInFlight See {@link #make(Context, BTVSCallbacks, int)}.
+     * @param rxRingSize The number of received events that may wait to be delivered while the
+     * interface is ready. Further events are dropped until there is room.
+     * @return The one and only instance of the Vendor Specific State Machine
+     */
+    public static VendorSpecificStateMachine make(Context context, BTVSCallbacks callback,
+        int maxCommandsInFlight, int rxRingSize)
     {
         VendorSpecificStateMachine machine;
         if (DEBUG) Log.d(TAG, "make");
-        machine = new VendorSpecificStateMachine(context, callback);
+        machine = new VendorSpecificStateMachine(context, callback, maxCommandsInFlight,
+                rxRingSize);
         machine.start();
         return machine;
     }
 
     /**
      * Prepares the vendor specific interface if not already prepared
+     * @return Completed once the interface is ready, or failed with
+     * {@link CommandCompleteCallback#FAILURE_INTERFACE_DOWN} if it went down, or could not be
+     * prepared in time, first.
      */
-    public void prepareVendorSpecificInterface()
+    public VSFuture<Void> prepareVendorSpecificInterface()
     {
-        sendMessage(PREPARE_INTERFACE);
+        VSFuture<Void> future = new VSFuture<Void>();
+        sendMessage(PREPARE_INTERFACE, future);
+        return future;
     }
 
     /**
      * Sends the vendor specific command if interface is ready. If vendor specific command was not
-     * send successfully, callback is notified
+     * send successfully, callback is notified through
+     * {@link CommandCompleteCallback#onCommandFailed(int)}
      * @param opcode
      * @param parameters
      * @param callback
@@ -167,18 +231,49 @@ public class VendorSpecificStateMachine extends StateMachine
         Message msg = Message.obtain(getHandler(), SEND_COMMAND);
         msg.arg1 = opcode;
         CommandContext ctx = new CommandContext();
+        ctx.opcode = opcode;
         ctx.callback = callback;
         ctx.params = parameters;
         msg.obj = ctx;
         sendMessage(msg);
     }
 
+    /**
+     * Sends the vendor specific command if interface is ready.
+     * @param opcode
+     * @param parameters
+     * @return Completed with the command complete's parameters, or failed with the reason given
+     * to {@link CommandCompleteCallback#onCommandFailed(int)}.
+     */
+    public VSFuture<byte[]> sendVendorSpecificCommand(short opcode, byte[] parameters)
+    {
+        final VSFuture<byte[]> future = new VSFuture<byte[]>();
+        sendVendorSpecificCommand(opcode, parameters, new CommandCompleteCallback()
+        {
+            @Override
+            public void onCommandComplete(byte[] params)
+            {
+                future.complete(params);
+            }
+
+            @Override
+            public void onCommandFailed(int reason)
+            {
+                future.fail(reason);
+            }
+        });
+        return future;
+    }
+
     /**
      * Release the vendor specific interface
+     * @return Completed once the interface is down, after any commands still outstanding.
      */
-    public void releaseVendorSpecificInterface()
+    public VSFuture<Void> releaseVendorSpecificInterface()
     {
-        sendMessage(RELEASE_INTERFACE);
+        VSFuture<Void> future = new VSFuture<Void>();
+        sendMessage(RELEASE_INTERFACE, future);
+        return future;
     }
 
     /**
@@ -193,8 +288,23 @@ public class VendorSpecificStateMachine extends StateMachine
         msg.obj = spec;
         sendMessage(msg);
     }
+
+    /**
+     * Stops the state machine and its receive thread. The instance cannot be used afterwards.
+     */
+    public void destroy()
+    {
+        mRxDispatcher.quit();
+        quit();
+    }
+
+    public void dump(PrintWriter pw)
+    {
+        mRxDispatcher.dump(pw);
+    }
 //--------------------------------------- Internal Methods ----------------------------------------
-    private VendorSpecificStateMachine(Context context, BTVSCallbacks callback)
+    private VendorSpecificStateMachine(Context context, BTVSCallbacks callback,
+        int maxCommandsInFlight, int rxRingSize)
     {
         super("VendorSpecificState");
         addState(mIdleState);
@@ -205,6 +315,33 @@ public class VendorSpecificStateMachine extends StateMachine
 
         mContext = context;
         mStateCallbacks = callback;
+        mMaxCommandsInFlight = Math.max(1, maxCommandsInFlight);
+        mRxDispatcher = new HciRxDispatcher(callback, rxRingSize);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static VSFuture<Void> getFuture(Message msg)
+    {
+        return (VSFuture<Void>) msg.obj;
+    }
+
+    /**
+     * Completes, or fails if given a reason, every future in the list and empties it.
+     */
+    private static void finishFutures(LinkedList<VSFuture<Void>> futures, int failure)
+    {
+        while (!futures.isEmpty())
+        {
+            VSFuture<Void> future = futures.poll();
+            if (failure == 0)
+            {
+                future.complete(null);
+            }
+            else
+            {
+                future.fail(failure);
+            }
+        }
     }
 //-------------------------------------- Public Interfaces ----------------------------------------
     /**
@@ -214,15 +351,53 @@ public class VendorSpecificStateMachine extends StateMachine
     {
         public void onInterfaceReady();
         public void onInterfaceDown();
-        public void onEventReceived(byte[] params);
+        /**
+         * @param receivedNanos When the event came from the bluetooth stack, from
+         * {@link JAntUtils#elapsedRealtimeNanos()}.
+         */
+        public void onEventReceived(byte[] params, long receivedNanos);
+    }
+
+    /**
+     * A received event on its way to {@link BTVSCallbacks#onEventReceived(byte[], long)}.
+     */
+    static final class ReceivedEvent
+    {
+        final byte[] params;
+        final long receivedNanos;
+
+        ReceivedEvent(byte[] params, long receivedNanos)
+        {
+            this.params = params;
+            this.receivedNanos = receivedNanos;
+        }
+
+        void deliver(BTVSCallbacks callbacks)
+        {
+            callbacks.onEventReceived(params, receivedNanos);
+        }
     }
 
     /**
-     * Calls back to inform whether the command complete was successful or not
+     * Calls back with the command complete, or with the reason there will not be one
      */
     public interface CommandCompleteCallback
     {
+        /** The interface was not ready, the command was not sent. */
+        public static final int FAILURE_INTERFACE_NOT_READY = 1;
+        /** The interface went down before the command completed. */
+        public static final int FAILURE_INTERFACE_DOWN = 2;
+        /** No command complete was received in time. */
+        public static final int FAILURE_TIMEOUT = 3;
+        /** The maximum number of commands were already outstanding, the command was not sent. */
+        public static final int FAILURE_TOO_MANY_COMMANDS = 4;
+
         public void onCommandComplete(byte [] parameters);
+
+        /**
+         * @param reason One of the FAILURE_X values.
+         */
+        public void onCommandFailed(int reason);
     }
 
 //------------------------------------------- States ----------------------------------------------
@@ -238,10 +413,14 @@ public class VendorSpecificStateMachine extends StateMachine
             if (DEBUG) Log.d(TAG, "enter Idle");
 
             mBluetoothVS = null;
+            mRxDispatcher.setActiveInstance(HciRxDispatcher.NO_INSTANCE);
             if(mInitial)
                mInitial = false;
             else
                mStateCallbacks.onInterfaceDown();
+
+            finishFutures(mPendingPrepares, CommandCompleteCallback.FAILURE_INTERFACE_DOWN);
+            finishFutures(mPendingReleases, 0);
         }
 
         @Override
@@ -251,6 +430,7 @@ public class VendorSpecificStateMachine extends StateMachine
             {
                 case PREPARE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "PREPARE_INTERFACE");
+                    mPendingPrepares.add(getFuture(msg));
                     transitionTo(mWaitingForInterfaceState);
                     mBTCallbacks = new BTCallbacks();
                     mBluetoothVS = new BluetoothVS(mContext, mBTCallbacks);
@@ -258,10 +438,12 @@ public class VendorSpecificStateMachine extends StateMachine
                 case RELEASE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "RELEASE_INTERFACE");
                     // there is no interface to release: IGNORE
+                    getFuture(msg).complete(null);
                     break;
                 case SEND_COMMAND:
                     if (DEBUG) Log.v(TAG, "SEND_COMMAND");
-                    ((CommandContext)msg.obj).callback.onCommandComplete(null);
+                    ((CommandContext)msg.obj).callback.onCommandFailed(
+                            CommandCompleteCallback.FAILURE_INTERFACE_NOT_READY);
                     break;
                 default:
                     if (DEBUG) Log.d(TAG, "Unexpected Message" + msg.what + " in state " + getName());
@@ -308,15 +490,18 @@ public class VendorSpecificStateMachine extends StateMachine
                 case PREPARE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "PREPARE_INTERFACE");
                     // already preparing interface: IGNORE
+                    mPendingPrepares.add(getFuture(msg));
                     break;
                 case RELEASE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "RELEASE_INTERFACE");
+                    mPendingReleases.add(getFuture(msg));
                     transitionTo(mIdleState);
                     mBluetoothVS.release();
                     break;
                 case SEND_COMMAND:
                     if (DEBUG) Log.v(TAG, "SEND_COMMAND");
-                    ((CommandContext)msg.obj).callback.onCommandComplete(null);
+                    ((CommandContext)msg.obj).callback.onCommandFailed(
+                            CommandCompleteCallback.FAILURE_INTERFACE_NOT_READY);
                     break;
                 default:
                     if (DEBUG) Log.d(TAG, "Unexpected Message" + msg.what + " in state " + getName());
@@ -350,7 +535,9 @@ public class VendorSpecificStateMachine extends StateMachine
             if (DEBUG) Log.d(TAG, "enter Ready");
             if(!mTransitionFromCommandCompleteWait)
             {
+                mRxDispatcher.setActiveInstance(mBTCallbacks.mInstanceNum);
                 mStateCallbacks.onInterfaceReady();
+                finishFutures(mPendingPrepares, 0);
             }
             else
             {
@@ -371,21 +558,23 @@ public class VendorSpecificStateMachine extends StateMachine
                 case EVENT_RECEIVED:
                     if(mBTCallbacks.mInstanceNum != msg.arg2) break;
                     if (DEBUG) Log.v(TAG, "EVENT_RECEIVED");
-                    mStateCallbacks.onEventReceived((byte[])msg.obj);
+                    ((ReceivedEvent)msg.obj).deliver(mStateCallbacks);
                     break;
                 case SEND_COMMAND:
                     if (DEBUG) Log.v(TAG, "SEND_COMMAND");
                     transitionTo(mWaitingForCommandCompleteState);
                     CommandContext ctx = (CommandContext)msg.obj;
-                    mWaitingForCommandCompleteState.setCommand((short)msg.arg1, ctx.callback);
-                    mBluetoothVS.sendVendorSpecificCommand((short)msg.arg1, ctx.params);
+                    mWaitingForCommandCompleteState.addCommand(ctx);
+                    mBluetoothVS.sendVendorSpecificCommand(ctx.opcode, ctx.params);
                     break;
                 case PREPARE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "PREPARE_INTERFACE");
                     // interface already prepared: IGNORE
+                    getFuture(msg).complete(null);
                     break;
                 case RELEASE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "RELEASE_INTERFACE");
+                    mPendingReleases.add(getFuture(msg));
                     transitionTo(mIdleState);
                     mBluetoothVS.release();
                     break;
@@ -404,25 +593,55 @@ public class VendorSpecificStateMachine extends StateMachine
     }
 
     /**
-     * Waiting for a command complete from BT Service after a send Vendor Specific Command
+     * Waiting for command completes from BT Service after one or more send Vendor Specific
+     * Commands. Each command that does not complete within 5s is failed on its own.
      */
     private class WaitingForCommandCompleteState extends State
     {
         private static final int WAIT_FOR_COMMAND_COMPLETE_TIMEOUT_MS = 5000;
-        private short mOpcode;
-        private CommandCompleteCallback mCallback;
+        private final LinkedList<CommandContext> mOutstanding = new LinkedList<CommandContext>();
 
-        public void setCommand(short opcode, CommandCompleteCallback cb)
+        public void addCommand(CommandContext ctx)
         {
-            mOpcode = opcode;
-            mCallback = cb;
+            ctx.deadline = SystemClock.uptimeMillis() + WAIT_FOR_COMMAND_COMPLETE_TIMEOUT_MS;
+            mOutstanding.add(ctx);
+        }
+
+        /**
+         * Arms the command complete timeout for the oldest outstanding command.
+         */
+        private void scheduleTimeout()
+        {
+            removeMessages(COMMAND_COMPLETE_TIMEOUT);
+            CommandContext oldest = mOutstanding.peek();
+            if (oldest != null)
+            {
+                long delay = Math.max(0, oldest.deadline - SystemClock.uptimeMillis());
+                sendMessageDelayed(COMMAND_COMPLETE_TIMEOUT, delay);
+            }
+        }
+
+        /**
+         * Goes back to ready if there are no commands left waiting for a command complete.
+         */
+        private void checkAllComplete()
+        {
+            if (mOutstanding.isEmpty())
+            {
+                mReadyState.setTransitioningFromCommandCompleteWait();
+                transitionTo(mReadyState);
+            }
+            else
+            {
+                scheduleTimeout();
+            }
         }
 
         @Override
         public void enter()
         {
             if (DEBUG) Log.d(TAG, "enter Waiting For Command Complete");
-            sendMessageDelayed(COMMAND_COMPLETE_TIMEOUT, WAIT_FOR_COMMAND_COMPLETE_TIMEOUT_MS);
+            scheduleTimeout();
         }
 
         @Override
@@ -431,45 +650,79 @@ public class VendorSpecificStateMachine extends StateMachine
             switch(msg.what)
             {
                 case COMMAND_COMPLETE:
+                {
                     if(mBTCallbacks.mInstanceNum != msg.arg2) break;
-                    if((short)msg.arg1 != mOpcode)
+                    CommandContext completed = null;
+                    Iterator<CommandContext> it = mOutstanding.iterator();
+                    while (it.hasNext())
+                    {
+                        CommandContext ctx = it.next();
+                        if (ctx.opcode == (short)msg.arg1)
+                        {
+                            it.remove();
+                            completed = ctx;
+                            break;
+                        }
+                    }
+                    if (completed == null)
                     {
                         if (DEBUG) Log.w(TAG, "Ignoring COMMAND_COMPLETE for wrong opcode.");
                         break;
                     }
                     if (DEBUG) Log.v(TAG, "COMMAND_COMPLETE");
-                    mReadyState.setTransitioningFromCommandCompleteWait();
-                    transitionTo(mReadyState);
-                    mCallback.onCommandComplete((byte []) msg.obj);
+                    checkAllComplete();
+                    completed.callback.onCommandComplete((byte []) msg.obj);
                     break;
+                }
                 case COMMAND_COMPLETE_TIMEOUT:
+                {
                     if (DEBUG) Log.v(TAG, "COMMAND_COMPLETE_TIMEOUT");
-                    mReadyState.setTransitioningFromCommandCompleteWait();
-                    transitionTo(mReadyState);
-                    mCallback.onCommandComplete(null);
+                    CommandContext expired = mOutstanding.poll();
+                    checkAllComplete();
+                    if (expired != null)
+                    {
+                        expired.callback.onCommandFailed(CommandCompleteCallback.FAILURE_TIMEOUT);
+                    }
                     break;
+                }
                 case INTERFACE_DOWN:
                     if(mBTCallbacks.mInstanceNum != msg.arg2) break;
                     if (DEBUG) Log.v(TAG, "INTERFACE_DOWN");
                     transitionTo(mIdleState);
-                    mCallback.onCommandComplete(null);
+                    while (!mOutstanding.isEmpty())
+                    {
+                        mOutstanding.poll().callback.onCommandFailed(
+                                CommandCompleteCallback.FAILURE_INTERFACE_DOWN);
+                    }
                     break;
                 case EVENT_RECEIVED:
                     if(mBTCallbacks.mInstanceNum != msg.arg2) break;
                     if (DEBUG) Log.v(TAG, "EVENT_RECEIVED");
-                    mStateCallbacks.onEventReceived((byte[])msg.obj);
+                    ((ReceivedEvent)msg.obj).deliver(mStateCallbacks);
                     break;
                 case PREPARE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "PREPARE_INTERFACE");
+                    // interface already prepared: IGNORE
+                    getFuture(msg).complete(null);
                     break;
                 case RELEASE_INTERFACE:
                     if (DEBUG) Log.v(TAG, "RELEASE_INTERFACE, command in progress so release is deferred.");
                     deferMessage(msg);
                     break;
                 case SEND_COMMAND:
-                    if (DEBUG) Log.w(TAG, "SEND_COMMAND, command already in progress");
-                    ((CommandContext)msg.obj).callback.onCommandComplete(null);
+                {
+                    CommandContext ctx = (CommandContext)msg.obj;
+                    if (mOutstanding.size() >= mMaxCommandsInFlight)
+                    {
+                        if (DEBUG) Log.w(TAG, "SEND_COMMAND, too many commands already in progress");
+                        ctx.callback.onCommandFailed(CommandCompleteCallback.FAILURE_TOO_MANY_COMMANDS);
+                        break;
+                    }
+                    if (DEBUG) Log.v(TAG, "SEND_COMMAND");
+                    addCommand(ctx);
+                    mBluetoothVS.sendVendorSpecificCommand(ctx.opcode, ctx.params);
                     break;
+                }
                 case SET_EVENT_FILTER:
                     if (DEBUG) Log.v(TAG, "SET_EVENT_FILTER");
                     FilterSpec spec = (FilterSpec)msg.obj;
@@ -492,8 +745,10 @@ public class VendorSpecificStateMachine extends StateMachine
     //---------------------------------- Internal classes -----------------------------------------
     private static final class CommandContext
     {
+        private short opcode;
         private CommandCompleteCallback callback;
         private byte[] params;
+        private long deadline;
     }
 
     private static final class FilterSpec
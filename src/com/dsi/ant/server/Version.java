@@ -30,10 +30,12 @@ public class Version {
     //
     // Specifies the interface version (IAntHal and IAntHalCallback).
     //
+    // Version code 2 adds IAntHal2 and IAntHal2Callback.
+    //
     //////////////////////////////////////////////
-    public static final int    ANT_HAL_LIBRARY_VERSION_CODE = 1;
+    public static final int    ANT_HAL_LIBRARY_VERSION_CODE = 2;
     public static final int    ANT_HAL_LIBRARY_VERSION_MAJOR = 0;
-    public static final int    ANT_HAL_LIBRARY_VERSION_MINOR = 1;
+    public static final int    ANT_HAL_LIBRARY_VERSION_MINOR = 2;
     public static final String ANT_HAL_LIBRARY_VERSION_NAME = String.valueOf(ANT_HAL_LIBRARY_VERSION_MAJOR) + "." + String.valueOf(ANT_HAL_LIBRARY_VERSION_MINOR);
 
 }
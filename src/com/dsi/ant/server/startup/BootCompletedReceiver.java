@@ -38,7 +38,7 @@ public class BootCompletedReceiver extends BroadcastReceiver
         // just make sure we are getting the right intent (better safe than sorry)
         if(Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction()))
         {
-            AntService.startService(context);
+            AntService.startServiceAtBoot(context);
         }
         else
         {
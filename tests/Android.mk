@@ -0,0 +1,40 @@
+#
+# Copyright 2015 Dynastream Innovations
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+#
+# Host tests for the parts of the service that run without Android, using the pure Java
+# stand-ins for libantradio.so. Run with:
+#   java -cp $(HOST_OUT_JAVA_LIBRARIES)/BluedroidANTServiceHostTests.jar:<junit jar> \
+#       org.junit.runner.JUnitCore com.dsi.ant.core.JAntStandInTest \
+#       com.dsi.ant.server.SharedRxRingTest
+#
+
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, src) \
+    $(call all-java-files-under, ../src/com/dsi/ant/core) \
+    ../src/com/dsi/ant/server/AntHalDefine.java \
+    ../src/com/dsi/ant/server/SharedRxRing.java
+
+# The Android classes are only needed to compile, they are never called on the host.
+LOCAL_CLASSPATH := prebuilts/sdk/current/android.jar
+LOCAL_STATIC_JAVA_LIBRARIES := junit
+LOCAL_MODULE_TAGS := tests
+LOCAL_MODULE := BluedroidANTServiceHostTests
+
+include $(BUILD_HOST_JAVA_LIBRARY)
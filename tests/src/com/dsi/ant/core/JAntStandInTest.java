@@ -0,0 +1,236 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.dsi.ant.server.AntHalDefine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the VFS transport against {@link JAntStandIn} on the host.
+ */
+public class JAntStandInTest
+{
+    private static final byte[] BROADCAST = {9, 0x4E, 0, 1, 2, 3, 4, 5, 6, 7, 8};
+
+    private final JAntStandIn mStandIn = new JAntStandIn();
+    private final JAntJava mJAnt = new JAntJava();
+    private final Callback mCallback = new Callback();
+
+    private static final class Callback implements JAntJava.ICallback
+    {
+        final List<Integer> states = new ArrayList<Integer>();
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        volatile CountDownLatch received = new CountDownLatch(1);
+        /** Holds the ring's dispatch thread back until opened, if set. */
+        volatile CountDownLatch gate = null;
+
+        public synchronized void ANTStateChange(int NewState)
+        {
+            states.add(NewState);
+        }
+
+        public synchronized void ANTRxMessage(byte[] RxMessage, long receivedNanos)
+        {
+            messages.add(RxMessage.clone());
+            received.countDown();
+        }
+
+        public void ANTRxMessage(ByteBuffer RxMessage, long receivedNanos)
+        {
+            CountDownLatch gate = this.gate;
+            if (gate != null)
+            {
+                try
+                {
+                    gate.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            add(RxMessage);
+        }
+
+        private synchronized void add(ByteBuffer RxMessage)
+        {
+            byte[] message = new byte[RxMessage.remaining()];
+            RxMessage.duplicate().get(message);
+            messages.add(message);
+            received.countDown();
+        }
+    }
+
+    @Before
+    public void setUp()
+    {
+        JAntJava.setNative(mStandIn);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mJAnt.destroy();
+        JAntJava.setNative(null);
+    }
+
+    @Test
+    public void createFailsWithoutLibraryOrStandIn()
+    {
+        JAntJava.setNative(null);
+        try
+        {
+            mJAnt.create(mCallback);
+            fail("Created without libantradio.so");
+        }
+        catch (UnsatisfiedLinkError expected)
+        {
+            // The library is not on the host.
+        }
+        finally
+        {
+            JAntJava.setNative(mStandIn);
+        }
+    }
+
+    @Test
+    public void enableAndDisableReportStates()
+    {
+        assertEquals(JAntStatus.SUCCESS, mJAnt.create(mCallback));
+
+        assertEquals(JAntStatus.SUCCESS, mJAnt.enable());
+        assertEquals(AntHalDefine.ANT_HAL_STATE_ENABLED, mJAnt.getRadioEnabledStatus());
+        assertEquals(JAntStatus.SUCCESS, mJAnt.disable());
+        assertEquals(AntHalDefine.ANT_HAL_STATE_DISABLED, mJAnt.getRadioEnabledStatus());
+
+        synchronized (mCallback)
+        {
+            assertEquals(4, mCallback.states.size());
+            assertEquals(AntHalDefine.ANT_HAL_STATE_ENABLING, (int) mCallback.states.get(0));
+            assertEquals(AntHalDefine.ANT_HAL_STATE_ENABLED, (int) mCallback.states.get(1));
+            assertEquals(AntHalDefine.ANT_HAL_STATE_DISABLING, (int) mCallback.states.get(2));
+            assertEquals(AntHalDefine.ANT_HAL_STATE_DISABLED, (int) mCallback.states.get(3));
+        }
+    }
+
+    @Test
+    public void sentMessagesReachTheStandIn()
+    {
+        assertEquals(JAntStatus.SUCCESS, mJAnt.create(mCallback));
+
+        assertEquals(JAntStatus.SUCCESS, mJAnt.ANTTxMessage(BROADCAST));
+
+        List<byte[]> sent = mStandIn.getSentMessages();
+        assertEquals(1, sent.size());
+        assertArrayEquals(BROADCAST, sent.get(0));
+    }
+
+    @Test
+    public void receivedMessagesArriveAsArraysWithoutRing() throws InterruptedException
+    {
+        assertEquals(JAntStatus.SUCCESS, mJAnt.create(mCallback, 0));
+
+        mStandIn.receive(BROADCAST);
+
+        assertTrue(mCallback.received.await(1, TimeUnit.SECONDS));
+        synchronized (mCallback)
+        {
+            assertArrayEquals(BROADCAST, mCallback.messages.get(0));
+        }
+    }
+
+    @Test
+    public void receivedMessagesArriveThroughRing() throws InterruptedException
+    {
+        // Enough to go round the ring several times.
+        final int count = 100;
+        assertEquals(JAntStatus.SUCCESS, mJAnt.create(mCallback, 8));
+
+        for (int i = 0; i < count; i++)
+        {
+            byte[] message = BROADCAST.clone();
+            message[3] = (byte) i;
+            mCallback.received = new CountDownLatch(1);
+            mStandIn.receive(message);
+            assertTrue(mCallback.received.await(1, TimeUnit.SECONDS));
+        }
+
+        synchronized (mCallback)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                assertEquals((byte) i, mCallback.messages.get(i)[3]);
+            }
+        }
+    }
+
+    @Test
+    public void fullRingHoldsTheLibraryBackInsteadOfDropping() throws Exception
+    {
+        final int count = 40;
+        mCallback.gate = new CountDownLatch(1);
+        mCallback.received = new CountDownLatch(count);
+        assertEquals(JAntStatus.SUCCESS, mJAnt.create(mCallback, 8));
+
+        // Stands in for the library's receive thread, which waits while the ring is full.
+        Thread library = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    byte[] message = BROADCAST.clone();
+                    message[3] = (byte) i;
+                    mStandIn.receive(message);
+                }
+            }
+        };
+        library.start();
+
+        library.join(200);
+        assertTrue(library.isAlive());
+
+        mCallback.gate.countDown();
+        library.join(1000);
+        assertTrue(mCallback.received.await(1, TimeUnit.SECONDS));
+        synchronized (mCallback)
+        {
+            assertEquals(count, mCallback.messages.size());
+            for (int i = 0; i < count; i++)
+            {
+                assertEquals((byte) i, mCallback.messages.get(i)[3]);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * ANT Stack
+ *
+ * Copyright 2015 Dynastream Innovations
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.dsi.ant.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a writer and a reader against separate mappings of one file, as the service and a
+ * client do.
+ */
+public class SharedRxRingTest
+{
+    private static final int DATA_SIZE = SharedRxRing.MIN_DATA_SIZE;
+    private static final int MESSAGES = 200000;
+
+    private File mFile;
+    private ByteBuffer mWriterMapping;
+    private ByteBuffer mReaderMapping;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mFile = File.createTempFile("antring", null);
+        mWriterMapping = map(mFile);
+        mReaderMapping = map(mFile);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mFile.delete();
+    }
+
+    private static ByteBuffer map(File file) throws IOException
+    {
+        RandomAccessFile ringFile = new RandomAccessFile(file, "rw");
+        try
+        {
+            ringFile.setLength(SharedRxRing.HEADER_SIZE + DATA_SIZE);
+            return ringFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    SharedRxRing.HEADER_SIZE + DATA_SIZE);
+        }
+        finally
+        {
+            ringFile.close();
+        }
+    }
+
+    /** Lengths that do not divide the ring, so records keep straddling the end of it. */
+    private static byte[] message(int index)
+    {
+        byte[] message = new byte[1 + index % 37];
+        for (int i = 0; i < message.length; i++)
+        {
+            message[i] = (byte) (index + i);
+        }
+        return message;
+    }
+
+    @Test
+    public void readsEveryMessageInOrderAcrossWraps() throws Exception
+    {
+        final SharedRxRing.Writer writer = new SharedRxRing.Writer(mWriterMapping, DATA_SIZE);
+        SharedRxRing.Reader reader = new SharedRxRing.Reader(mReaderMapping);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int i = 0; i < MESSAGES; i++)
+                    {
+                        byte[] message = message(i);
+                        while (!writer.write(message))
+                        {
+                            writer.publish();
+                            Thread.yield();
+                        }
+                        if (i % 7 == 0) writer.publish();
+                    }
+                    writer.publish();
+                }
+                catch (Throwable t)
+                {
+                    failure.set(t);
+                }
+            }
+        };
+        producer.start();
+
+        int received = 0;
+        long deadline = System.nanoTime() + 60000000000L;
+        while (received < MESSAGES && failure.get() == null && System.nanoTime() < deadline)
+        {
+            byte[] message = reader.poll();
+            if (message == null)
+            {
+                Thread.yield();
+                continue;
+            }
+            assertArrayEquals("Message " + received, message(received), message);
+            received++;
+        }
+        producer.join();
+
+        assertNull(failure.get());
+        assertEquals(MESSAGES, received);
+        assertNull(reader.poll());
+    }
+
+    @Test
+    public void ringsDoorbellOnlyOnceReaderHasCaughtUp()
+    {
+        SharedRxRing.Writer writer = new SharedRxRing.Writer(mWriterMapping, DATA_SIZE);
+        SharedRxRing.Reader reader = new SharedRxRing.Reader(mReaderMapping);
+
+        assertTrue(writer.write(message(0)));
+        assertTrue(writer.publish());
+
+        // The reader has not read the first message, so it has not gone to wait.
+        assertTrue(writer.write(message(1)));
+        assertFalse(writer.publish());
+
+        assertArrayEquals(message(0), reader.poll());
+        assertArrayEquals(message(1), reader.poll());
+        assertNull(reader.poll());
+
+        // Caught up, so it may be waiting and must be woken for the next one.
+        assertTrue(writer.write(message(2)));
+        assertTrue(writer.publish());
+        assertArrayEquals(message(2), reader.poll());
+    }
+
+    @Test
+    public void reportsEachWriterWaitOnce()
+    {
+        SharedRxRing.Writer writer = new SharedRxRing.Writer(mWriterMapping, DATA_SIZE);
+        SharedRxRing.Reader reader = new SharedRxRing.Reader(mReaderMapping);
+
+        byte[] message = message(36);
+        while (writer.write(message))
+        {
+            // Fill the ring.
+        }
+        writer.publish();
+        writer.setWaiting(true);
+
+        assertTrue(reader.isWriterWaiting());
+        assertFalse(reader.isWriterWaiting());
+
+        assertArrayEquals(message, reader.poll());
+        assertTrue(writer.hasRoom(message));
+        writer.setWaiting(false);
+        assertFalse(reader.isWriterWaiting());
+    }
+}